@@ -0,0 +1,107 @@
+package benchmarks;
+
+import SparkServer.ImageFormat;
+import filters.PixelBuffer;
+import filters.TiledImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time spent around the filters: decoding uploads, encoding results in each response format,
+ * and the base64 step of the JSON routes
+ * Decoding only covers png and jpeg, the formats clients upload. decodeTiled decodes into a scratch file
+ * like the largest uploads, in a single pass, so its time per pixel should not grow with the size.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+    /**
+     * format with its setting, as the format, level and quality params of the server
+     */
+    @Param({"png:1", "png:6", "jpeg:85", "qoi", "raw"})
+    public String format;
+
+    @Param({Images.THUMBNAIL, Images.MP2, Images.MP12, Images.MP48})
+    public String size;
+
+    private ImageFormat encoder;
+    private BufferedImage image;
+    private byte[] encoded;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        ImageIO.setUseCache(false);
+        String[] parts = format.split(":");
+        String setting = parts.length > 1 ? parts[1] : null;
+        encoder = ImageFormat.negotiate(parts[0], null, setting, setting);
+        if (encoder == null) {
+            throw new IllegalArgumentException("invalid format " + format);
+        }
+        image = Images.photo(size);
+        encoded = encode();
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encoder.write(image, out);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        if (!encoder.name.equals(ImageFormat.PNG) && !encoder.name.equals(ImageFormat.JPEG)) {
+            // ImageIO has no reader for the other formats
+            return null;
+        }
+        return PixelBuffer.normalize(ImageIO.read(new ByteArrayInputStream(encoded)));
+    }
+
+    @Benchmark
+    public int decodeTiled() throws IOException {
+        if (!encoder.name.equals(ImageFormat.PNG) && !encoder.name.equals(ImageFormat.JPEG)) {
+            return 0;
+        }
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded))) {
+            ImageReader reader = ImageIO.getImageReaders(in).next();
+            try {
+                reader.setInput(in, false, true);
+                try (TiledImage image = TiledImage.read(reader)) {
+                    return image.height;
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @Benchmark
+    public String base64() {
+        return Base64.getEncoder().encodeToString(encoded);
+    }
+}
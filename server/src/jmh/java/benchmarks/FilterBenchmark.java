@@ -0,0 +1,69 @@
+package benchmarks;
+
+import SparkServer.SparkServer;
+import filters.Filter;
+import filters.FilterFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to apply every filter of FilterFactory, by image size and intensity
+ * Filters are compiled plans memoized by the factory, so creating them is left out of the measure
+ * The full matrix is large, narrow it with -p, e.g. -p filter=gauss,bigbox -p size=12MP
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+
+    @Param({"invert", "gray", "bw", "emoji", "ascii", "ansi", "bright", "sat", "color",
+            "box", "gauss", "bigbox", "biggauss", "outline", "sharp", "noise", "dom"})
+    public String filter;
+
+    @Param({Images.THUMBNAIL, Images.MP2, Images.MP12, Images.MP48})
+    public String size;
+
+    @Param({"10", "50", "100"})
+    public int intensity;
+
+    private Filter compiled;
+    private BufferedImage source;
+    private BufferedImage image;
+
+    @Setup(Level.Trial)
+    public void load() {
+        SparkServer.setup();
+        compiled = new FilterFactory().createFilter(filter, intensity, 0x3366CC);
+        source = Images.photo(size);
+        image = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_ARGB);
+    }
+
+    // in place filters would otherwise run on their own output, whose cost can differ
+    // the copy is at most a few ms for 48MP, small next to the filters themselves
+    @Setup(Level.Invocation)
+    public void reset() {
+        Images.copy(source, image);
+    }
+
+    @Benchmark
+    public BufferedImage apply() {
+        compiled.applyFilter(image);
+        return image;
+    }
+}
@@ -0,0 +1,76 @@
+package benchmarks;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Random;
+
+/**
+ * Synthetic photos the benchmarks run on
+ * Smooth gradients with a little noise and a few hard edges, so blurs, codecs and the
+ * hue histograms see something closer to a photo than random pixels or a flat color.
+ */
+final class Images {
+
+    /**
+     * sizes of the size param: thumbnail, 2MP, 12MP and 48MP
+     */
+    static final String THUMBNAIL = "thumbnail", MP2 = "2MP", MP12 = "12MP", MP48 = "48MP";
+
+    private Images() {
+    }
+
+    /**
+     * @param size one of the size constants
+     * @return { width, height } of size
+     */
+    static int[] dimensions(String size) {
+        switch (size) {
+            case THUMBNAIL:
+                return new int[]{256, 192};
+            case MP2:
+                return new int[]{1920, 1080};
+            case MP12:
+                return new int[]{4000, 3000};
+            case MP48:
+                return new int[]{8000, 6000};
+            default:
+                throw new IllegalArgumentException("unknown size " + size);
+        }
+    }
+
+    /**
+     * @param size one of the size constants
+     * @return new opaque TYPE_INT_ARGB image, the same for the same size
+     */
+    static BufferedImage photo(String size) {
+        int[] dims = dimensions(size);
+        int width = dims[0], height = dims[1];
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] data = ((DataBufferInt) res.getRaster().getDataBuffer()).getData();
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = 255 * x / width;
+                int g = 255 * y / height;
+                // a diagonal edge every eighth of the width
+                int b = ((x + y) / Math.max(1, width / 8)) % 2 == 0 ? 60 : 190;
+                int n = random.nextInt(16) - 8;
+                data[y * width + x] = 0xFF000000 | clamp(r + n) << 16 | clamp(g + n) << 8 | clamp(b + n);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Copies src into dst, both TYPE_INT_ARGB images of the same size
+     */
+    static void copy(BufferedImage src, BufferedImage dst) {
+        int[] from = ((DataBufferInt) src.getRaster().getDataBuffer()).getData();
+        int[] to = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        System.arraycopy(from, 0, to, 0, from.length);
+    }
+
+    private static int clamp(int c) {
+        return Math.max(0, Math.min(255, c));
+    }
+}
@@ -0,0 +1,107 @@
+package benchmarks;
+
+import filters.Filter;
+import filters.Parallelize;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sweeps the pixels per band of Parallelize, 0 for the bands it sizes itself from Filter.cost()
+ * Runs a cheap per pixel kernel and a 3x3 stencil, so the scheduling overhead shows against
+ * both light and heavier work.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class ParallelizeBenchmark {
+
+    @Param({"0", "256", "1000", "4096", "16384", "65536", "262144", "1048576"})
+    public int cutoff;
+
+    @Param({"point", "stencil"})
+    public String kernel;
+
+    @Param({Images.THUMBNAIL, Images.MP2, Images.MP12})
+    public String size;
+
+    private Kernel filter;
+    private BufferedImage image;
+
+    @Setup
+    public void load() {
+        image = Images.photo(size);
+        filter = new Kernel(kernel.equals("stencil"), cutoff);
+    }
+
+    @Benchmark
+    public BufferedImage apply() {
+        filter.applyFilter(image);
+        return image;
+    }
+
+    /**
+     * Filter whose work per pixel is fixed, writing to its own array so runs do not change the input
+     */
+    static final class Kernel extends Filter {
+        private final boolean stencil;
+        private final int cutoff;
+        private int[] out;
+
+        Kernel(boolean stencil, int cutoff) {
+            this.stencil = stencil;
+            this.cutoff = cutoff;
+        }
+
+        @Override
+        public void applyFilter(BufferedImage bi) {
+            Context context = new Context(bi);
+            if (out == null || out.length != bi.getWidth() * bi.getHeight()) {
+                out = new int[bi.getWidth() * bi.getHeight()];
+            }
+            parallelize(cutoff == 0 ? new Parallelize(0, bi.getWidth(), 0, bi.getHeight(), this, context)
+                    : new Parallelize(0, bi.getWidth(), 0, bi.getHeight(), this, context, cutoff));
+        }
+
+        @Override
+        public int cost() {
+            return stencil ? 9 : 1;
+        }
+
+        @Override
+        protected void filter(Context context, int xlow, int xhi, int ylow, int yhi) {
+            int[] pixels = context.pixels;
+            int offset = context.offset, stride = context.stride;
+            int width = context.bi.getWidth(), height = context.bi.getHeight();
+            for (int y = ylow; y < yhi; y++) {
+                for (int x = xlow; x < xhi; x++) {
+                    if (!stencil) {
+                        out[y * width + x] = ~pixels[offset + y * stride + x] | ALPHA_MASK;
+                        continue;
+                    }
+                    int sum = 0;
+                    for (int j = Math.max(0, y - 1); j <= Math.min(height - 1, y + 1); j++) {
+                        for (int i = Math.max(0, x - 1); i <= Math.min(width - 1, x + 1); i++) {
+                            sum += pixels[offset + j * stride + i] & COLOR;
+                        }
+                    }
+                    out[y * width + x] = sum;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package benchmarks;
+
+import filters.Filter;
+import filters.FilterFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point filters on the scalar loops against the Vector API kernels, see filters.inPlace.VectorKernels
+ * Both run in forks with jdk.incubator.vector, the scalar one turns the kernels off, so this needs JDK 17+.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class VectorBenchmark {
+
+    @Param({"invert", "gray", "bw", "bright", "sat", "color"})
+    public String filter;
+
+    @Param({Images.THUMBNAIL, Images.MP2, Images.MP12})
+    public String size;
+
+    private BufferedImage source;
+    private BufferedImage image;
+    private Filter f;
+
+    @Setup(Level.Trial)
+    public void load() {
+        source = Images.photo(size);
+        image = new BufferedImage(source.getWidth(), source.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        f = new FilterFactory().createFilter(filter, 50, 0x3366CC);
+    }
+
+    @Setup(Level.Invocation)
+    public void reset() {
+        Images.copy(source, image);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "--add-modules", "jdk.incubator.vector",
+            "-Dphotofilter.vector=false"})
+    public BufferedImage scalar() {
+        f.applyFilter(image);
+        return image;
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "--add-modules", "jdk.incubator.vector"})
+    public BufferedImage vector() {
+        f.applyFilter(image);
+        return image;
+    }
+}
@@ -0,0 +1,233 @@
+package SparkServer;
+
+import filters.Filter;
+import filters.TiledImage;
+import filters.copy.CopyFilter;
+import filters.copy.FastBlur;
+import filters.copy.Noise;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the work in flight, as a number of decoded pixels and an estimate of the memory they need
+ * Requests that do not fit wait in a bounded first come first served queue for a bounded time,
+ * and are rejected when the queue is full or the wait times out.
+ */
+public class Admission {
+
+    /**
+     * Room taken by an admitted request, given back by close()
+     */
+    public final class Permit implements AutoCloseable {
+        private final long pixels, bytes;
+        private boolean closed;
+
+        private Permit(long pixels, long bytes) {
+            this.pixels = pixels;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    /**
+     * Thrown when a request is not admitted
+     */
+    public static final class Rejected extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * 429 when the queue was full, 503 when the wait timed out
+         */
+        public final int status;
+
+        /**
+         * seconds after which the client should retry
+         */
+        public final long retryAfter;
+
+        Rejected(int status, long retryAfter, String message) {
+            super(message);
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    /**
+     * Snapshot of the counters, serialized by the /admission route
+     */
+    public static final class Stats {
+        long inflight, inflightPixels, inflightBytes, queued;
+        long admitted, rejected, timedOut;
+        long maxPixels, maxBytes, maxQueue, maxWaitMillis;
+    }
+
+    /**
+     * bounds of the work in flight and of the queue
+     */
+    private final long maxPixels, maxBytes;
+    private final int maxQueue;
+    private final long maxWaitMillis;
+
+    /**
+     * work in flight and waiting requests, guarded by this
+     */
+    private long pixels, bytes;
+    private int inflight;
+    private final ArrayDeque<Object> queue = new ArrayDeque<>();
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * @param maxPixels largest number of decoded pixels in flight
+     * @param maxBytes largest estimated memory in flight
+     * @param maxQueue largest number of waiting requests
+     * @param maxWaitMillis longest wait of a request
+     */
+    public Admission(long maxPixels, long maxBytes, int maxQueue, long maxWaitMillis) {
+        this.maxPixels = maxPixels;
+        this.maxBytes = maxBytes;
+        this.maxQueue = maxQueue;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Estimates the memory a filter needs while running on an image
+     * Every request holds its decoded ARGB pixels and an encoded copy. Copy filters add their int copy,
+     * and the fast blurs the int plane between their passes. Noise adds the sliding histograms of the bands
+     * running at once, one per worker, and separable matrices the rows of horizontal results of theirs.
+     * Tiled requests hold a decoded band of rows, then the padded tiles the filters run on.
+     *
+     * @param pixels decoded pixels of the request
+     * @param filters filters applied, one after the other
+     * @param tiled true if the request is filtered tile by tile
+     * @return estimated bytes
+     */
+    public static long bytes(long pixels, List<Filter> filters, boolean tiled) {
+        long bands = 0;
+        for (Filter f : filters) {
+            // filters of a chain run one after the other, so take the largest rather than the sum
+            if (f instanceof Noise) {
+                bands = Math.max(bands, ((Noise) f).histogramBytes() * Filter.fjpool.getParallelism());
+            } else if (f instanceof CopyFilter) {
+                bands = Math.max(bands, ((CopyFilter) f).rowBytes() * Filter.fjpool.getParallelism());
+            }
+        }
+        if (tiled) {
+            long tiles = 0;
+            for (Filter f : filters) {
+                long side = TiledImage.tile(f) + 2L * f.halo();
+                tiles = Math.max(tiles, workBytes(f) * Math.min(pixels, side * side));
+            }
+            return 4 * Math.min(pixels, TiledImage.DECODE_PIXELS) + tiles + bands;
+        }
+        long perPixel = 4;
+        for (Filter f : filters) {
+            // chained copy filters share their copy, so take the largest rather than the sum
+            perPixel = Math.max(perPixel, workBytes(f));
+        }
+        return (perPixel + 4) * pixels + bands;
+    }
+
+    // helper giving the bytes per pixel a filter holds while running: the image, and its copy and passes
+    private static long workBytes(Filter f) {
+        if (f instanceof FastBlur) {
+            return 12;
+        }
+        return f instanceof CopyFilter ? 8 : 4;
+    }
+
+    /**
+     * Waits until the request fits in the budget
+     * A request larger than the whole budget is admitted alone.
+     *
+     * @param pixels decoded pixels of the request
+     * @param bytes estimated memory of the request
+     * @return permit to close when the request is done
+     * @throws Rejected if the queue is full or the wait timed out
+     */
+    public Permit acquire(long pixels, long bytes) throws Rejected, InterruptedException {
+        Object me = new Object();
+        synchronized (this) {
+            if (queue.isEmpty() && fits(pixels, bytes)) {
+                return admit(pixels, bytes);
+            }
+            if (queue.size() >= maxQueue) {
+                rejected.incrementAndGet();
+                throw new Rejected(429, retryAfter(), "too many requests waiting");
+            }
+            queue.addLast(me);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            try {
+                while (queue.peekFirst() != me || !fits(pixels, bytes)) {
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0) {
+                        timedOut.incrementAndGet();
+                        throw new Rejected(503, retryAfter(), "server busy");
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                }
+                return admit(pixels, bytes);
+            } finally {
+                queue.remove(me);
+                // the next request in line may fit now
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return current counters
+     */
+    public synchronized Stats stats() {
+        Stats s = new Stats();
+        s.inflight = inflight;
+        s.inflightPixels = pixels;
+        s.inflightBytes = bytes;
+        s.queued = queue.size();
+        s.admitted = admitted.get();
+        s.rejected = rejected.get();
+        s.timedOut = timedOut.get();
+        s.maxPixels = maxPixels;
+        s.maxBytes = maxBytes;
+        s.maxQueue = maxQueue;
+        s.maxWaitMillis = maxWaitMillis;
+        return s;
+    }
+
+    private boolean fits(long p, long b) {
+        return inflight == 0 || (pixels + p <= maxPixels && bytes + b <= maxBytes);
+    }
+
+    private Permit admit(long p, long b) {
+        pixels += p;
+        bytes += b;
+        inflight++;
+        admitted.incrementAndGet();
+        return new Permit(p, b);
+    }
+
+    private synchronized void release(Permit permit) {
+        if (permit.closed) {
+            return;
+        }
+        permit.closed = true;
+        pixels -= permit.pixels;
+        bytes -= permit.bytes;
+        inflight--;
+        notifyAll();
+    }
+
+    // helper suggesting a retry once a full wait has passed
+    private long retryAfter() {
+        return Math.max(1, (maxWaitMillis + 999) / 1000);
+    }
+}
@@ -0,0 +1,385 @@
+package SparkServer;
+
+import filters.PixelBuffer;
+import filters.TiledImage;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.RenderedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Output encodings a client can ask for, with their settings
+ * PNG takes a deflate level (0 fastest to 9 smallest), JPEG a quality (0 to 100),
+ * QOI and RAW are lossless and much faster to encode than PNG.
+ * RAW is the width and height as big endian ints, followed by width * height big endian ARGB ints.
+ */
+public final class ImageFormat {
+
+    public static final String PNG = "png", JPEG = "jpeg", QOI = "qoi", RAW = "raw";
+
+    /**
+     * default settings of the encoders, level 4 is the default of the JDK png writer
+     */
+    public static final int DEFAULT_LEVEL = 4, DEFAULT_QUALITY = 85;
+
+    /**
+     * formats in the order they are picked on equal preference, fastest lossless first
+     */
+    private static final String[] BY_SPEED = {RAW, QOI, PNG, JPEG};
+
+    /**
+     * one of PNG, JPEG, QOI or RAW
+     */
+    public final String name;
+
+    /**
+     * png deflate level, or jpeg quality
+     */
+    public final int setting;
+
+    private ImageFormat(String name, int setting) {
+        this.name = name;
+        this.setting = setting;
+    }
+
+    /**
+     * Picks the format of a response
+     * An explicit format param wins. Otherwise accept is parsed as media ranges with q-values, and the
+     * format whose own media type is listed with the highest q is used, the fastest lossless one on ties.
+     * Jpeg is only used when listed and preferred to every lossless format listed. Wildcards do not pick
+     * a format, a browser accepting any type still expects something it can display, so png is the default,
+     * unless accept refuses it with q=0 and accepts another lossless format.
+     *
+     * @param format value of the format query param, or null
+     * @param accept value of the Accept header, or null to ignore it
+     * @param level value of the level query param, or null
+     * @param quality value of the quality query param, or null
+     * @return chosen format, null if format or the settings are invalid
+     */
+    public static ImageFormat negotiate(String format, String accept, String level, String quality) {
+        String name = format == null ? null : format.toLowerCase(Locale.ROOT);
+        if ("jpg".equals(name)) {
+            name = JPEG;
+        }
+        if (name == null) {
+            name = accept == null ? PNG : negotiate(accept);
+        }
+        try {
+            switch (name) {
+                case PNG:
+                    int l = level == null ? DEFAULT_LEVEL : Integer.parseInt(level);
+                    return l < 0 || l > 9 ? null : new ImageFormat(PNG, l);
+                case JPEG:
+                    int q = quality == null ? DEFAULT_QUALITY : Integer.parseInt(quality);
+                    return q < 0 || q > 100 ? null : new ImageFormat(JPEG, q);
+                case QOI:
+                case RAW:
+                    return new ImageFormat(name, 0);
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // helper choosing a format from the media ranges of an Accept header, see negotiate
+    private static String negotiate(String accept) {
+        // q-value of each format, from the most specific range matching it: 2 for its type, 1 for type/*, 0 for */*
+        double[] q = new double[BY_SPEED.length];
+        int[] match = new int[BY_SPEED.length];
+        Arrays.fill(match, -1);
+        for (String range : accept.toLowerCase(Locale.ROOT).split(",")) {
+            String[] parts = range.split(";");
+            String type = parts[0].trim();
+            double weight = 1;
+            for (int p = 1; p < parts.length; p++) {
+                String param = parts[p].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        weight = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        weight = -1;
+                    }
+                }
+            }
+            if (!(weight >= 0 && weight <= 1)) {
+                // malformed q-value, the range is ignored
+                continue;
+            }
+            for (int f = 0; f < BY_SPEED.length; f++) {
+                String media = mediaType(BY_SPEED[f]);
+                int specificity = type.equals(media) ? 2
+                        : type.equals(media.substring(0, media.indexOf('/')) + "/*") ? 1
+                        : type.equals("*/*") ? 0 : -1;
+                if (specificity > match[f]) {
+                    match[f] = specificity;
+                    q[f] = weight;
+                }
+            }
+        }
+        int best = -1;
+        for (int f = 0; f < BY_SPEED.length; f++) {
+            // strictly higher, so ties go to the faster format and jpeg must be preferred to win
+            if (match[f] == 2 && q[f] > 0 && (best < 0 || q[f] > q[best])) {
+                best = f;
+            }
+        }
+        if (best >= 0) {
+            return BY_SPEED[best];
+        }
+        int png = Arrays.asList(BY_SPEED).indexOf(PNG);
+        if (match[png] >= 0 && q[png] == 0) {
+            for (int f = 0; f < png; f++) {
+                if (match[f] >= 0 && q[f] > 0) {
+                    return BY_SPEED[f];
+                }
+            }
+        }
+        return PNG;
+    }
+
+    /**
+     * @return png at the default level
+     */
+    public static ImageFormat png() {
+        return new ImageFormat(PNG, DEFAULT_LEVEL);
+    }
+
+    @Override
+    public String toString() {
+        return name + ":" + setting;
+    }
+
+    /**
+     * @return Content-Type of the encoded image
+     */
+    public String contentType() {
+        return mediaType(name);
+    }
+
+    // helper giving the media type of a format
+    private static String mediaType(String name) {
+        switch (name) {
+            case JPEG:
+                return "image/jpeg";
+            case QOI:
+                return "image/qoi";
+            case RAW:
+                return "application/octet-stream";
+            default:
+                return "image/png";
+        }
+    }
+
+    /**
+     * Encodes image into out
+     *
+     * @param image TYPE_INT_ARGB image to encode
+     * @param out stream to write to, not closed
+     */
+    public void write(BufferedImage image, OutputStream out) throws IOException {
+        switch (name) {
+            case JPEG:
+                // jpeg has no alpha channel
+                BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+                PixelBuffer src = PixelBuffer.of(image);
+                int[] dst = ((DataBufferInt) rgb.getRaster().getDataBuffer()).getData();
+                for (int j = 0; j < src.height; j++) {
+                    System.arraycopy(src.data, src.offset + j * src.stride, dst, j * src.width, src.width);
+                }
+                writeImageIO(rgb, "jpeg", setting / 100f, out);
+                break;
+            case QOI:
+                writeQoi(rows(PixelBuffer.of(image)), out);
+                break;
+            case RAW:
+                writeRaw(rows(PixelBuffer.of(image)), out);
+                break;
+            default:
+                // deflate level 9 is compression quality 0, level 0 is quality 1
+                writeImageIO(image, "png", 1 - setting / 9f, out);
+        }
+    }
+
+    /**
+     * Encodes a tiled image into out, reading it a band of rows at a time
+     * The ImageIO jpeg writer reads the whole image at once, so only png, qoi and raw keep the heap bounded.
+     *
+     * @param image image to encode
+     * @param out stream to write to, not closed
+     */
+    public void write(TiledImage image, OutputStream out) throws IOException {
+        switch (name) {
+            case JPEG:
+                writeImageIO(image.asRenderedImage(false), "jpeg", setting / 100f, out);
+                break;
+            case QOI:
+                writeQoi(rows(image), out);
+                break;
+            case RAW:
+                writeRaw(rows(image), out);
+                break;
+            default:
+                writeImageIO(image.asRenderedImage(true), "png", 1 - setting / 9f, out);
+        }
+    }
+
+    /**
+     * Source of the rows of an image, for the encoders of this class
+     */
+    private interface Rows {
+        int width();
+
+        int height();
+
+        // copies row y into dst
+        void read(int y, int[] dst);
+    }
+
+    private static Rows rows(PixelBuffer pixels) {
+        return new Rows() {
+            public int width() {
+                return pixels.width;
+            }
+
+            public int height() {
+                return pixels.height;
+            }
+
+            public void read(int y, int[] dst) {
+                System.arraycopy(pixels.data, pixels.offset + y * pixels.stride, dst, 0, pixels.width);
+            }
+        };
+    }
+
+    private static Rows rows(TiledImage image) {
+        return new Rows() {
+            public int width() {
+                return image.width;
+            }
+
+            public int height() {
+                return image.height;
+            }
+
+            public void read(int y, int[] dst) {
+                image.read(0, y, image.width, 1, dst, 0, image.width);
+            }
+        };
+    }
+
+    // helper writing through ImageIO with an explicit compression quality
+    private static void writeImageIO(RenderedImage image, String format, float quality, OutputStream out) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // helper writing the header and ARGB ints of the raw format
+    private static void writeRaw(Rows pixels, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        int width = pixels.width();
+        data.writeInt(width);
+        data.writeInt(pixels.height());
+        int[] line = new int[width];
+        for (int j = 0; j < pixels.height(); j++) {
+            pixels.read(j, line);
+            for (int i = 0; i < width; i++) {
+                data.writeInt(line[i]);
+            }
+        }
+        data.flush();
+    }
+
+    // helper encoding "The Quite OK Image Format" (qoiformat.org), 4 channels, sRGB
+    private static void writeQoi(Rows pixels, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        int width = pixels.width();
+        data.writeInt(0x716f6966); // "qoif"
+        data.writeInt(width);
+        data.writeInt(pixels.height());
+        data.writeByte(4);
+        data.writeByte(0);
+
+        int[] index = new int[64];
+        int prev = 0xFF000000;
+        int run = 0;
+        int[] line = new int[width];
+        for (int j = 0; j < pixels.height(); j++) {
+            pixels.read(j, line);
+            for (int i = 0; i < width; i++) {
+                int px = line[i];
+                if (px == prev) {
+                    run++;
+                    if (run == 62) {
+                        data.writeByte(0xC0 | (run - 1));
+                        run = 0;
+                    }
+                    continue;
+                }
+                if (run > 0) {
+                    data.writeByte(0xC0 | (run - 1));
+                    run = 0;
+                }
+                int a = px >>> 24, r = (px >> 16) & 0xFF, g = (px >> 8) & 0xFF, b = px & 0xFF;
+                int hash = (r * 3 + g * 5 + b * 7 + a * 11) % 64;
+                if (index[hash] == px) {
+                    data.writeByte(hash);
+                } else {
+                    index[hash] = px;
+                    if (a == prev >>> 24) {
+                        // wrapping differences, as bytes
+                        int dr = (byte) (r - ((prev >> 16) & 0xFF));
+                        int dg = (byte) (g - ((prev >> 8) & 0xFF));
+                        int db = (byte) (b - (prev & 0xFF));
+                        int drg = dr - dg, dbg = db - dg;
+                        if (dr >= -2 && dr <= 1 && dg >= -2 && dg <= 1 && db >= -2 && db <= 1) {
+                            data.writeByte(0x40 | (dr + 2) << 4 | (dg + 2) << 2 | (db + 2));
+                        } else if (dg >= -32 && dg <= 31 && drg >= -8 && drg <= 7 && dbg >= -8 && dbg <= 7) {
+                            data.writeByte(0x80 | (dg + 32));
+                            data.writeByte((drg + 8) << 4 | (dbg + 8));
+                        } else {
+                            data.writeByte(0xFE);
+                            data.writeByte(r);
+                            data.writeByte(g);
+                            data.writeByte(b);
+                        }
+                    } else {
+                        data.writeByte(0xFF);
+                        data.writeByte(r);
+                        data.writeByte(g);
+                        data.writeByte(b);
+                        data.writeByte(a);
+                    }
+                }
+                prev = px;
+            }
+        }
+        if (run > 0) {
+            data.writeByte(0xC0 | (run - 1));
+        }
+        // end marker
+        data.writeLong(1);
+        data.flush();
+    }
+}
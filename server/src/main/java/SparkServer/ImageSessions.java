@@ -0,0 +1,186 @@
+package SparkServer;
+
+import filters.PixelBuffer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Decoded images uploaded once and filtered many times, e.g. while a slider moves
+ * Sessions expire ttl after their last use, and the least recently used ones are dropped
+ * when the decoded pixels of all sessions go over the byte budget.
+ */
+public class ImageSessions {
+
+    /**
+     * An uploaded image, never modified after creation
+     */
+    public static final class Session {
+        public final String id;
+
+        /**
+         * hash of the uploaded bytes
+         */
+        public final byte[] digest;
+
+        private final BufferedImage image;
+        private final long bytes;
+        private volatile long lastUse;
+
+        private Session(String id, byte[] digest, BufferedImage image) {
+            this.id = id;
+            this.digest = digest;
+            this.image = image;
+            this.bytes = 4L * image.getWidth() * image.getHeight();
+            this.lastUse = System.nanoTime();
+        }
+
+        public int width() {
+            return image.getWidth();
+        }
+
+        public int height() {
+            return image.getHeight();
+        }
+
+        /**
+         * @return a TYPE_INT_ARGB copy of the image, free to be filtered
+         */
+        public BufferedImage copy() {
+            BufferedImage res = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            PixelBuffer src = PixelBuffer.of(image);
+            int[] dst = ((DataBufferInt) res.getRaster().getDataBuffer()).getData();
+            for (int j = 0; j < src.height; j++) {
+                System.arraycopy(src.data, src.offset + j * src.stride, dst, j * src.width, src.width);
+            }
+            return res;
+        }
+
+        /**
+         * Reads the image in place, which must not modify it
+         *
+         * @param reader computes a result from the image
+         * @return result of reader
+         */
+        public <T> T read(Function<BufferedImage, T> reader) {
+            return reader.apply(image);
+        }
+
+        /**
+         * @param preview bounds of the copy, null for full resolution
+         * @return a TYPE_INT_ARGB copy of the image reduced to fit preview, free to be filtered
+         */
+        public Preview.Scaled copy(Preview preview) {
+            Preview.Scaled scaled = preview == null ? null : preview.reduce(image);
+            return scaled == null || scaled.image == image ? new Preview.Scaled(copy(), 1) : scaled;
+        }
+    }
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final long maxBytes;
+    private final long ttlNanos;
+
+    /**
+     * @param maxBytes largest total size of the decoded images
+     * @param ttlSeconds time after its last use when a session expires
+     */
+    public ImageSessions(long maxBytes, long ttlSeconds) {
+        this.maxBytes = maxBytes;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, ttlSeconds / 4);
+        sweeper.scheduleAtFixedRate(this::evict, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stores an image
+     *
+     * @param upload bytes the image was decoded from
+     * @param image decoded image, normalized to TYPE_INT_ARGB
+     * @return new session, or null if the image alone is larger than the budget
+     */
+    public Session create(byte[] upload, BufferedImage image) {
+        Session session = new Session(UUID.randomUUID().toString(), digest(upload), PixelBuffer.normalize(image));
+        if (session.bytes > maxBytes) {
+            return null;
+        }
+        sessions.put(session.id, session);
+        evict();
+        return session;
+    }
+
+    /**
+     * @param id session id
+     * @return the live session id, null if it does not exist or expired
+     */
+    public Session get(String id) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            return null;
+        }
+        if (System.nanoTime() - session.lastUse > ttlNanos) {
+            sessions.remove(id, session);
+            return null;
+        }
+        session.lastUse = System.nanoTime();
+        return session;
+    }
+
+    /**
+     * @param id session id
+     * @return true if the session existed
+     */
+    public boolean remove(String id) {
+        return sessions.remove(id) != null;
+    }
+
+    // drops expired sessions, then the least recently used ones until under budget
+    private synchronized void evict() {
+        long now = System.nanoTime();
+        List<Session> live = new ArrayList<>();
+        long total = 0;
+        for (Session s : sessions.values()) {
+            if (now - s.lastUse > ttlNanos) {
+                sessions.remove(s.id, s);
+            } else {
+                live.add(s);
+                total += s.bytes;
+            }
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+        live.sort(Comparator.comparingLong(s -> s.lastUse));
+        for (Session s : live) {
+            if (total <= maxBytes) {
+                break;
+            }
+            sessions.remove(s.id, s);
+            total -= s.bytes;
+        }
+    }
+
+    private static byte[] digest(byte[] upload) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(upload);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package SparkServer;
+
+import filters.Filter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per filter and per stage timings, pixel counts, bytes and allocations of the image requests
+ * Rendered at /metrics in the Prometheus text format. Distributions are kept in fixed log buckets,
+ * so recording is a few atomic adds and quantiles are within 1/16 of the true value.
+ */
+public class Metrics {
+
+    /**
+     * Stages of a request, the labels of the stage timers
+     */
+    public static final String ADMISSION = "admission", BASE64_DECODE = "base64_decode", DECODE = "decode",
+            FILTER = "filter", ENCODE = "encode", JSON = "json";
+
+    /**
+     * Request being served by a thread, its stages may run on other threads
+     */
+    public static final class Request {
+        private final long start = System.nanoTime();
+        private final LongAdder allocated = new LongAdder();
+        private volatile String filter = "unknown";
+        private volatile long bytesOut;
+    }
+
+    /**
+     * Timer of a stage, recorded when closed on the thread it was opened on
+     * The filter stage also counts what the workers of Filter.fjpool allocate while it is open: they are
+     * shared, so requests filtering at the same time are each charged for the allocations of all of them.
+     */
+    public final class Stage implements AutoCloseable {
+        private final Request request;
+        private final String name;
+        private final long start;
+        private final long allocated;
+        private final long[] workers;
+        private final long[] workersAllocated;
+
+        private Stage(Request request, String name) {
+            this.request = request;
+            this.name = name;
+            this.workers = THREADS != null && FILTER.equals(name) ? Filter.workerIds() : new long[0];
+            this.workersAllocated = workers.length == 0 ? workers : THREADS.getThreadAllocatedBytes(workers);
+            this.allocated = allocatedBytes();
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            long nanos = System.nanoTime() - start;
+            if (request == null) {
+                return;
+            }
+            long bytes = allocatedBytes() - allocated;
+            if (THREADS != null && FILTER.equals(name)) {
+                bytes += workersAllocated();
+            }
+            String labels = "filter=\"" + request.filter + "\",stage=\"" + name + "\"";
+            histogram(stages, labels).record(nanos);
+            counter(stageAllocated, labels).add(bytes);
+            request.allocated.add(bytes);
+        }
+
+        // bytes allocated by the workers since the stage opened, workers started since count from 0
+        private long workersAllocated() {
+            long[] ids = Filter.workerIds();
+            long[] now = THREADS.getThreadAllocatedBytes(ids);
+            long bytes = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (now[i] < 0) {
+                    continue;
+                }
+                long before = 0;
+                for (int j = 0; j < workers.length; j++) {
+                    if (workers[j] == ids[i]) {
+                        before = Math.max(0, workersAllocated[j]);
+                        break;
+                    }
+                }
+                bytes += now[i] - before;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Counts of values in log buckets, 16 per power of two
+     */
+    static final class Histogram {
+        private static final int SUB = 16, SUB_BITS = 4;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        // smallest bucket holding at least q of the values, as the middle of that bucket
+        double quantile(double q) {
+            long total = count.sum();
+            if (total == 0) {
+                return Double.NaN;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return middle(i);
+                }
+            }
+            return middle(counts.length() - 1);
+        }
+
+        // values below 2^SUB_BITS have their own bucket, others share one with values of the same top bits
+        private static int bucket(long value) {
+            if (value < SUB) {
+                return (int) value;
+            }
+            int msb = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (msb - SUB_BITS)) & (SUB - 1);
+            return msb * SUB + sub;
+        }
+
+        private static double middle(int bucket) {
+            if (bucket < SUB) {
+                return bucket;
+            }
+            int msb = bucket / SUB;
+            int sub = bucket % SUB;
+            return (SUB + sub + 0.5) * Math.pow(2, msb - SUB_BITS);
+        }
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    /**
+     * per thread allocation counters of HotSpot, null when the JVM does not have them
+     */
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    private final ThreadLocal<Request> current = new ThreadLocal<>();
+
+    /**
+     * metrics by their preformatted labels
+     */
+    private final Map<String, Histogram> stages = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> requestSeconds = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> requestAllocated = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> stageAllocated = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> pixels = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bytesIn = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> bytesOut = new ConcurrentHashMap<>();
+
+    /**
+     * Starts measuring the request served by the current thread
+     */
+    public void begin() {
+        current.set(new Request());
+    }
+
+    /**
+     * Records the request served by the current thread
+     *
+     * @param bytesIn size of the request body
+     */
+    public void end(long bytesIn) {
+        Request request = current.get();
+        current.remove();
+        if (request == null) {
+            return;
+        }
+        String labels = "filter=\"" + request.filter + "\"";
+        histogram(requestSeconds, labels).record(System.nanoTime() - request.start);
+        histogram(requestAllocated, labels).record(request.allocated.sum());
+        counter(this.bytesIn, labels).add(Math.max(0, bytesIn));
+        counter(this.bytesOut, labels).add(request.bytesOut);
+    }
+
+    /**
+     * @return request served by the current thread, null if it is not measured
+     */
+    public Request request() {
+        return current.get();
+    }
+
+    /**
+     * Labels the current request with the filter it runs, names must come from a fixed set
+     */
+    public void filter(String name) {
+        Request request = current.get();
+        if (request != null) {
+            request.filter = name;
+        }
+    }
+
+    /**
+     * Records the size of the response body of the current request
+     */
+    public void sent(long bytes) {
+        Request request = current.get();
+        if (request != null) {
+            request.bytesOut = bytes;
+        }
+    }
+
+    /**
+     * Counts pixels filtered for the current request
+     */
+    public void pixels(long count) {
+        Request request = current.get();
+        if (request != null) {
+            counter(pixels, "filter=\"" + request.filter + "\"").add(count);
+        }
+    }
+
+    /**
+     * Starts timing a stage of the current request
+     */
+    public Stage stage(String name) {
+        return new Stage(current.get(), name);
+    }
+
+    /**
+     * Starts timing a stage of request, on a thread other than the one serving it
+     */
+    public Stage stage(Request request, String name) {
+        return new Stage(request, name);
+    }
+
+    /**
+     * Appends the request metrics in the Prometheus text format
+     */
+    public void render(StringBuilder sb) {
+        summary(sb, "photofilter_stage_seconds", "Time spent in each stage of the image requests", stages, 1e-9);
+        counters(sb, "photofilter_stage_allocated_bytes_total", "Bytes allocated by the thread running each stage, and by the filter pool during the filter stage", stageAllocated);
+        summary(sb, "photofilter_request_seconds", "Time to serve the image requests", requestSeconds, 1e-9);
+        summary(sb, "photofilter_request_allocated_bytes", "Bytes allocated by all the stages of a request", requestAllocated, 1);
+        counters(sb, "photofilter_pixels_total", "Pixels filtered", pixels);
+        counters(sb, "photofilter_bytes_in_total", "Bytes of the request bodies", bytesIn);
+        counters(sb, "photofilter_bytes_out_total", "Bytes of the response bodies", bytesOut);
+    }
+
+    /**
+     * Appends a single metric in the Prometheus text format
+     *
+     * @param type gauge or counter
+     */
+    public static void metric(StringBuilder sb, String name, String type, String help, double value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, Map<String, Histogram> metrics, double unit) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(metrics).entrySet()) {
+            Histogram h = e.getValue();
+            for (double q : QUANTILES) {
+                sb.append(name).append('{').append(e.getKey()).append(",quantile=\"").append(q).append("\"} ")
+                        .append(format(h.quantile(q) * unit)).append('\n');
+            }
+            sb.append(name).append("_sum{").append(e.getKey()).append("} ").append(format(h.sum.sum() * unit)).append('\n');
+            sb.append(name).append("_count{").append(e.getKey()).append("} ").append(h.count.sum()).append('\n');
+        }
+    }
+
+    private static void counters(StringBuilder sb, String name, String help, Map<String, LongAdder> metrics) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(metrics).entrySet()) {
+            sb.append(name).append('{').append(e.getKey()).append("} ").append(e.getValue().sum()).append('\n');
+        }
+    }
+
+    private static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+                ? Long.toString((long) value) : String.format(Locale.ROOT, "%.6g", value);
+    }
+
+    private static Histogram histogram(Map<String, Histogram> metrics, String labels) {
+        Histogram h = metrics.get(labels);
+        return h != null ? h : metrics.computeIfAbsent(labels, k -> new Histogram());
+    }
+
+    private static LongAdder counter(Map<String, LongAdder> metrics, String labels) {
+        LongAdder c = metrics.get(labels);
+        return c != null ? c : metrics.computeIfAbsent(labels, k -> new LongAdder());
+    }
+
+    // helper reading the bytes allocated so far by the current thread, 0 if not supported
+    private static long allocatedBytes() {
+        return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads;
+            }
+        }
+        return null;
+    }
+}
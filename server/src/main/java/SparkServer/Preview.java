@@ -0,0 +1,222 @@
+package SparkServer;
+
+import filters.PixelBuffer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Largest size of a preview result, from the preview query param
+ * Images larger than the bounds are subsampled while decoding, then area averaged down to fit,
+ * so filters run on about as many pixels as the client will display.
+ */
+public final class Preview {
+
+    /**
+     * An image reduced for a preview, and its size relative to the full resolution image
+     */
+    public static final class Scaled {
+        public final BufferedImage image;
+
+        /**
+         * preview width over full width, 1 if the image already fit
+         */
+        public final double scale;
+
+        Scaled(BufferedImage image, double scale) {
+            this.image = image;
+            this.scale = scale;
+        }
+    }
+
+    /**
+     * bounds of the preview, in pixels
+     */
+    public final int maxWidth, maxHeight;
+
+    private Preview(int maxWidth, int maxHeight) {
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+    }
+
+    /**
+     * @param value "size" for a square bound or "widthxheight", null for full resolution
+     * @return parsed bounds, null if value is null or invalid
+     */
+    public static Preview parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] dims = value.toLowerCase(Locale.ROOT).split("x");
+        try {
+            int w = Integer.parseInt(dims[0]);
+            int h = dims.length > 1 ? Integer.parseInt(dims[1]) : w;
+            return dims.length > 2 || w < 1 || h < 1 ? null : new Preview(w, h);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return maxWidth + "x" + maxHeight;
+    }
+
+    /**
+     * Decodes image bytes at preview size
+     * The decoder skips rows and columns so at least two source pixels per preview pixel remain on each axis,
+     * those are then area averaged, which is much cheaper than decoding everything and avoids aliasing.
+     *
+     * @param data encoded image
+     * @return TYPE_INT_ARGB image within the bounds, null if data could not be read
+     */
+    public Scaled read(byte[] data) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                return read(reader);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes the first image of a reader at preview size, see read(byte[])
+     *
+     * @param reader reader whose input is set
+     * @return TYPE_INT_ARGB image within the bounds
+     */
+    public Scaled read(ImageReader reader) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        double scale = scale(width, height);
+        ImageReadParam param = reader.getDefaultReadParam();
+        int step = Math.max(1, (int) (1 / scale / 2));
+        param.setSourceSubsampling(step, step, 0, 0);
+        BufferedImage decoded = PixelBuffer.normalize(reader.read(0, param));
+        return resize(decoded, width, height);
+    }
+
+    /**
+     * Reduces an already decoded image to preview size, the image is returned as is if it fits
+     *
+     * @param image TYPE_INT_ARGB image
+     * @return TYPE_INT_ARGB image within the bounds
+     */
+    public Scaled reduce(BufferedImage image) {
+        return resize(image, image.getWidth(), image.getHeight());
+    }
+
+    // helper computing the reduction of a width x height image that fits the bounds, at most 1
+    private double scale(int width, int height) {
+        return Math.min(1, Math.min(maxWidth / (double) width, maxHeight / (double) height));
+    }
+
+    // helper area averaging image, decoded from a width x height image, to preview size
+    private Scaled resize(BufferedImage image, int width, int height) {
+        double scale = scale(width, height);
+        int w = Math.max(1, Math.min(maxWidth, (int) Math.round(width * scale)));
+        int h = Math.max(1, Math.min(maxHeight, (int) Math.round(height * scale)));
+        if (w == image.getWidth() && h == image.getHeight()) {
+            return new Scaled(image, w / (double) width);
+        }
+        return new Scaled(areaAverage(image, w, h), w / (double) width);
+    }
+
+    // helper averaging image down to width x height
+    // every output pixel covers a rectangle of source pixels, source pixels on its edges count for the covered part
+    private static BufferedImage areaAverage(BufferedImage image, int width, int height) {
+        PixelBuffer src = PixelBuffer.of(image);
+        int[] colOut = new int[src.width];
+        float[] colWeight = new float[src.width];
+        coverage(src.width, width, colOut, colWeight);
+        int[] rowOut = new int[src.height];
+        float[] rowWeight = new float[src.height];
+        coverage(src.height, height, rowOut, rowWeight);
+        float area = (src.width / (float) width) * (src.height / (float) height);
+
+        BufferedImage res = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] dst = ((DataBufferInt) res.getRaster().getDataBuffer()).getData();
+
+        // channel sums of a source row reduced horizontally, and of the current and next output rows, 4 per pixel
+        float[] line = new float[width * 4];
+        float[] cur = new float[width * 4];
+        float[] next = new float[width * 4];
+        int y = 0;
+        for (int j = 0; j < src.height; j++) {
+            Arrays.fill(line, 0);
+            int row = src.offset + j * src.stride;
+            for (int i = 0; i < src.width; i++) {
+                int argb = src.data[row + i];
+                float a = argb >>> 24, r = (argb >> 16) & 0xFF, g = (argb >> 8) & 0xFF, b = argb & 0xFF;
+                int s = colOut[i] * 4;
+                float wt = colWeight[i];
+                line[s] += wt * a;
+                line[s + 1] += wt * r;
+                line[s + 2] += wt * g;
+                line[s + 3] += wt * b;
+                if (wt < 1) {
+                    // the rest of the pixel belongs to the next output column
+                    line[s + 4] += (1 - wt) * a;
+                    line[s + 5] += (1 - wt) * r;
+                    line[s + 6] += (1 - wt) * g;
+                    line[s + 7] += (1 - wt) * b;
+                }
+            }
+            if (rowOut[j] > y) {
+                store(cur, area, dst, y * width);
+                float[] t = cur;
+                cur = next;
+                next = t;
+                Arrays.fill(next, 0);
+                y = rowOut[j];
+            }
+            float wt = rowWeight[j];
+            for (int k = 0; k < line.length; k++) {
+                cur[k] += wt * line[k];
+                next[k] += (1 - wt) * line[k];
+            }
+        }
+        store(cur, area, dst, y * width);
+        return res;
+    }
+
+    // helper mapping every source index to the first output index it overlaps, and the part of it that overlaps
+    // sources cover [i, i + 1), outputs [o * ratio, (o + 1) * ratio) with ratio >= 1, so a source overlaps 2 outputs at most
+    private static void coverage(int sources, int outputs, int[] out, float[] weight) {
+        double ratio = sources / (double) outputs;
+        for (int i = 0; i < sources; i++) {
+            int o = Math.min(outputs - 1, (int) (i / ratio));
+            double end = (o + 1) * ratio;
+            out[i] = o;
+            weight[i] = o == outputs - 1 || end >= i + 1 ? 1 : (float) (end - i);
+        }
+    }
+
+    // helper writing an output row of channel sums as ARGB pixels
+    private static void store(float[] sums, float area, int[] dst, int start) {
+        for (int x = 0; x < sums.length / 4; x++) {
+            int s = x * 4;
+            int a = Math.min(255, Math.round(sums[s] / area));
+            int r = Math.min(255, Math.round(sums[s + 1] / area));
+            int g = Math.min(255, Math.round(sums[s + 2] / area));
+            int b = Math.min(255, Math.round(sums[s + 3] / area));
+            dst[start + x] = a << 24 | r << 16 | g << 8 | b;
+        }
+    }
+}
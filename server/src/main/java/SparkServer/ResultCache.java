@@ -0,0 +1,209 @@
+package SparkServer;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In memory cache of encoded filter results, keyed by a hash of the input image bytes and the filter params
+ * Entries are evicted least recently used first once their total size goes over the byte budget.
+ * Concurrent requests for the same key are coalesced, only the first one computes the result.
+ */
+public class ResultCache {
+
+    /**
+     * Computes a result on a cache miss
+     */
+    public interface Loader {
+        Result load() throws Exception;
+    }
+
+    /**
+     * Encoded response body and its Content-Type
+     */
+    public static final class Result {
+        public final byte[] body;
+        public final String contentType;
+
+        public Result(byte[] body, String contentType) {
+            this.body = body;
+            this.contentType = contentType;
+        }
+    }
+
+    /**
+     * Snapshot of the counters, serialized by the /cache route
+     */
+    public static final class Stats {
+        long hits, misses, coalesced, evictions, bytes, maxBytes, entries;
+        double hitRate;
+    }
+
+    /**
+     * largest total size of the cached bodies
+     */
+    private final long maxBytes;
+
+    /**
+     * cached results in access order, guarded by this
+     */
+    private final LinkedHashMap<String, Result> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * results being computed
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Result>> inflight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes largest total size of the cached bodies, 0 disables caching
+     */
+    public ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return false if the byte budget is 0, then nothing is ever cached
+     */
+    public boolean enabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Builds the key of a request
+     *
+     * @param input image bytes as sent by the client
+     * @param params everything else the result depends on (route, filter, intensity, color, format)
+     * @return cache key
+     */
+    public static String key(byte[] input, String params) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(input);
+            digest.update((byte) 0);
+            digest.update(params.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    /**
+     * Returns the cached result of key, computing it with loader on a miss
+     * If the same key is already being computed, waits for that computation instead.
+     * Exceptions of loader, including Spark halts, are thrown to every waiting caller, except rejections
+     * by Admission or the io pool: those belong to the request that computed, waiters try again themselves.
+     *
+     * @param key key built with key()
+     * @param loader computes the result
+     * @return result of key
+     */
+    public Result get(String key, Loader loader) throws Exception {
+        CompletableFuture<Result> mine = new CompletableFuture<>();
+        while (true) {
+            Result cached = lookup(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+
+            CompletableFuture<Result> running = inflight.putIfAbsent(key, mine);
+            if (running == null) {
+                break;
+            }
+            coalesced.incrementAndGet();
+            try {
+                return running.get();
+            } catch (ExecutionException e) {
+                if (!rejected(e.getCause())) {
+                    throw rethrow(e.getCause());
+                }
+            }
+        }
+
+        misses.incrementAndGet();
+        try {
+            Result res = loader.load();
+            store(key, res);
+            mine.complete(res);
+            return res;
+        } catch (Exception | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(key, mine);
+        }
+    }
+
+    /**
+     * @return current counters
+     */
+    public Stats stats() {
+        Stats s = new Stats();
+        s.hits = hits.get();
+        s.misses = misses.get();
+        s.coalesced = coalesced.get();
+        s.evictions = evictions.get();
+        s.maxBytes = maxBytes;
+        synchronized (this) {
+            s.bytes = bytes;
+            s.entries = entries.size();
+        }
+        long lookups = s.hits + s.misses + s.coalesced;
+        s.hitRate = lookups == 0 ? 0 : (s.hits + s.coalesced) / (double) lookups;
+        return s;
+    }
+
+    private synchronized Result lookup(String key) {
+        return entries.get(key);
+    }
+
+    private synchronized void store(String key, Result res) {
+        long size = res.body.length;
+        if (size > maxBytes) {
+            return;
+        }
+        Result old = entries.put(key, res);
+        if (old != null) {
+            bytes -= old.body.length;
+        }
+        bytes += size;
+        // drop the least recently used entries
+        Iterator<Map.Entry<String, Result>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Result> eldest = it.next();
+            bytes -= eldest.getValue().body.length;
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    // helper telling whether a failure only turned away the request that computed
+    private static boolean rejected(Throwable cause) {
+        return cause instanceof Admission.Rejected || cause instanceof RejectedExecutionException;
+    }
+
+    private static Exception rethrow(Throwable cause) {
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return (Exception) cause;
+    }
+}
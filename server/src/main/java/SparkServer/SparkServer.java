@@ -1,24 +1,101 @@
 package SparkServer;
 
 import filters.Filter;
+import filters.FilterChain;
 import filters.FilterFactory;
+import filters.HueHistogram;
+import filters.ImageStats;
+import filters.PixelBuffer;
+import filters.TiledImage;
+import filters.inPlace.GlyphAtlas;
+import spark.Request;
+import spark.Response;
 import spark.Spark;
 import utils.CORSFilter;
 import com.google.gson.Gson;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.servlet.MultipartConfigElement;
+import javax.servlet.ServletException;
+import javax.servlet.http.Part;
 import java.awt.image.*;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class SparkServer {
 
-    public static final Set<BufferedImage> asciis = new HashSet<>();
-    public static final Map<BufferedImage, Integer> emojis = new HashMap<>();
-
     private static final FilterFactory factory = new FilterFactory();
-    private static final int ALPHA_MASK = 0xFF000000;
+
+    /**
+     * encoded results of recent requests, bounded by the photofilter.cache.bytes property (default 256MB)
+     */
+    private static final ResultCache cache = new ResultCache(Long.getLong("photofilter.cache.bytes", 256L << 20));
+
+    /**
+     * bound of the work in flight, see Admission
+     * photofilter.admission.pixels decoded pixels (default 128M), photofilter.admission.bytes estimated bytes
+     * (default half the heap), photofilter.admission.queue waiting requests (default 64),
+     * each waiting at most photofilter.admission.wait milliseconds (default 5s)
+     */
+    private static final Admission admission = new Admission(Long.getLong("photofilter.admission.pixels", 1L << 27),
+            Long.getLong("photofilter.admission.bytes", Runtime.getRuntime().maxMemory() / 2),
+            Integer.getInteger("photofilter.admission.queue", 64), Long.getLong("photofilter.admission.wait", 5000L));
+
+    /**
+     * threads decoding and encoding images, photofilter.io.threads of them (default one per core)
+     * request threads hand decoding and encoding to this pool and pixel work to Filter.fjpool,
+     * so fork join workers never block on I/O and stay busy with filters only
+     */
+    private static final ExecutorService io = ioPool(Integer.getInteger("photofilter.io.threads",
+            Runtime.getRuntime().availableProcessors()), Integer.getInteger("photofilter.io.queue", 64));
+
+    /**
+     * seconds after which a request turned away by a full io queue should retry
+     */
+    private static final long IO_RETRY_AFTER = 1;
+
+    /**
+     * Decoding or encoding work run on the io pool
+     */
+    private interface IoTask<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * timings, sizes and allocations of the image requests, served at /metrics
+     */
+    private static final Metrics metrics = new Metrics();
+
+    /**
+     * decoded images uploaded to /session, bounded by the photofilter.session.bytes property (default 512MB)
+     * and dropped photofilter.session.ttl seconds after their last use (default 10 minutes)
+     */
+    private static final ImageSessions sessions = new ImageSessions(Long.getLong("photofilter.session.bytes", 512L << 20),
+            Long.getLong("photofilter.session.ttl", 600L));
+
+    /**
+     * images of at least this many pixels are filtered tile by tile from a scratch file (default 32M pixels)
+     */
+    private static final long TILED_PIXELS = Long.getLong("photofilter.tiled.pixels", 1L << 25);
+
+    /**
+     * /filtering/binary bodies up to this size are buffered so their result can be cached (default 16MB)
+     * larger ones, and all of them when the cache is disabled, stream from the request to the response
+     */
+    private static final long CACHED_BODY_BYTES = Long.getLong("photofilter.cache.body.bytes", 16L << 20);
 
     /*
      * Server
@@ -28,90 +105,756 @@ public class SparkServer {
         // population of funny filter data
         setup();
 
+        // encode and decode in memory rather than through temporary files
+        ImageIO.setUseCache(false);
+
         CORSFilter corsFilter = new CORSFilter();
         corsFilter.apply();
 
+        // requests admission turns away, 429 when its queue is full and 503 when their wait timed out
+        Spark.exception(Admission.Rejected.class, (e, request, response) -> {
+            response.status(e.status);
+            response.header("Retry-After", Long.toString(e.retryAfter));
+            response.body(e.getMessage());
+        });
+
+        // decodes and encodes that do not fit in the io queue turn their request away, like a full admission queue
+        Spark.exception(RejectedExecutionException.class, (e, request, response) -> {
+            response.status(503);
+            response.header("Retry-After", Long.toString(IO_RETRY_AFTER));
+            response.body("server busy");
+        });
+
+        // image requests are measured from the start of their route to the end of their response
+        Spark.before((request, response) -> {
+            String path = request.pathInfo();
+            if (path.startsWith("/filtering") || path.startsWith("/chain") || path.startsWith("/session")
+                    || path.startsWith("/stats")) {
+                metrics.begin();
+            }
+        });
+        Spark.afterAfter((request, response) -> metrics.end(request.contentLength()));
+
         // filter request
         Spark.post("/filtering", (request, response) -> {
             // get params
             String base64 = request.body();
-            String filter = request.queryParams("filter");
+            Filter f = parseFilter(request);
+            ImageFormat format = parseFormat(request, false);
+            Preview preview = parsePreview(request);
+            if (base64 == null) Spark.halt(502, "missing one of base64 or filter");
+
+            byte[] imageData = decode(base64);
+            // tiled results are too large to cache, their base64 streams to the client as they are encoded
+            if (tiled(f, preview, decodedPixels(imageData, preview))) {
+                ResponseStream out = new ResponseStream(response, "application/json", "\"");
+                try (OutputStream encoded = Base64.getEncoder().wrap(out)) {
+                    process(request, f, preview, new ByteArrayInputStream(imageData), format, encoded);
+                }
+                out.write('"');
+                out.flush();
+                metrics.sent(out.count);
+                return "";
+            }
+
+            String key = ResultCache.key(imageData, "filtering|" + filterParams(request) + "|" + format + "|" + preview);
+            ResultCache.Result result = cache.get(key, () -> {
+                // filter
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                process(request, f, preview, new ByteArrayInputStream(imageData), format, encoded);
+
+                return new ResultCache.Result(io(Metrics.JSON, () -> json(encoded.toByteArray())).getBytes(StandardCharsets.UTF_8),
+                        "application/json");
+            });
+            metrics.sent(result.body.length);
+            return new String(result.body, StandardCharsets.UTF_8);
+        });
+
+        // binary filter request, raw image bytes in the body (or an "image" multipart field) and in the response
+        // Format of URLs: http://localhost:4567/filtering/binary?filter=filter&int=intensity&c=wColor
+        // the response format is negotiated from the format param or the Accept header, see ImageFormat
+        Spark.post("/filtering/binary", (request, response) -> {
+            Filter f = parseFilter(request);
+            ImageFormat format = parseFormat(request, true);
+            Preview preview = parsePreview(request);
+
+            // only results that can be cached are worth buffering, the others stream from the request to the response
+            long length = request.contentLength();
+            byte[] imageData = cache.enabled() && length >= 0 && length <= CACHED_BODY_BYTES ? imageBytes(request) : null;
+            // tiled results are too large to cache
+            if (imageData == null || tiled(f, preview, decodedPixels(imageData, preview))) {
+                ResponseStream out = new ResponseStream(response, format.contentType(), "");
+                try (InputStream in = imageData == null ? imageStream(request) : new ByteArrayInputStream(imageData)) {
+                    process(request, f, preview, in, format, out);
+                }
+                out.flush();
+                metrics.sent(out.count);
+                return "";
+            }
+
+            String key = ResultCache.key(imageData, "binary|" + filterParams(request) + "|" + format + "|" + preview);
+            ResultCache.Result result = cache.get(key, () -> {
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                process(request, f, preview, new ByteArrayInputStream(imageData), format, encoded);
+                return new ResultCache.Result(encoded.toByteArray(), format.contentType());
+            });
+
+            // write the encoded image straight to the client
+            return send(response, result);
+        });
+
+        // chain request, applies several filters with a single decode and encode
+        // Format of URLs: http://localhost:4567/chain?filters=filter:intensity:wColor,filter:intensity,filter
+        Spark.post("/chain", (request, response) -> {
+            String base64 = request.body();
+            String filters = request.queryParams("filters");
+            if (base64 == null || filters == null) Spark.halt(502, "missing one of base64 or filters");
+            ImageFormat format = parseFormat(request, false);
+            Preview preview = parsePreview(request);
+            List<Filter> steps = parseChain(filters, 1);
+            metrics.filter("chain");
+
+            byte[] imageData = decode(base64);
+            String key = ResultCache.key(imageData, "chain|" + filters.toLowerCase() + "|" + format + "|" + preview);
+            ResultCache.Result result = cache.get(key, () -> {
+                long pixels = decodedPixels(imageData, preview);
+                try (Admission.Permit permit = admit(pixels, Admission.bytes(pixels, steps, false))) {
+                    BufferedImage inputImage;
+                    List<Filter> chain = steps;
+                    if (preview == null) {
+                        inputImage = read(new ByteArrayInputStream(imageData));
+                    } else {
+                        Preview.Scaled scaled = readPreview(preview, imageData);
+                        inputImage = scaled.image;
+                        chain = parseChain(filters, scaled.scale);
+                    }
+
+                    // consecutive point filters run as a single pass
+                    try (Metrics.Stage stage = metrics.stage(Metrics.FILTER)) {
+                        new FilterChain(chain).applyFilter(inputImage);
+                    }
+                    metrics.pixels((long) inputImage.getWidth() * inputImage.getHeight());
+
+                    return new ResultCache.Result(encode(inputImage, format).getBytes(StandardCharsets.UTF_8), "application/json");
+                }
+            });
+            metrics.sent(result.body.length);
+            return new String(result.body, StandardCharsets.UTF_8);
+        });
+
+        // session upload, the image is decoded once and kept for the filter requests below
+        // the body is either base64 like /filtering, or raw image bytes with an image/*, octet-stream or multipart type
+        // returns {"id": id, "width": width, "height": height}
+        Spark.post("/session", (request, response) -> {
+            byte[] imageData = uploadBytes(request);
+            metrics.filter("upload");
+            ImageSessions.Session session;
+            long pixels = decodedPixels(imageData, null);
+            try (Admission.Permit permit = admit(pixels, Admission.bytes(pixels, Collections.emptyList(), false))) {
+                session = sessions.create(imageData, read(new ByteArrayInputStream(imageData)));
+            }
+            if (session == null) Spark.halt(507, "image too large for a session");
+
+            Map<String, Object> res = new LinkedHashMap<>();
+            res.put("id", session.id);
+            res.put("width", session.width());
+            res.put("height", session.height());
+            response.type("application/json");
+            return new Gson().toJson(res);
+        });
+
+        // filter request on a session image, same params and json base64 response as /filtering
+        // Format of URLs: http://localhost:4567/session/id/filtering?filter=filter&int=intensity&c=wColor
+        Spark.get("/session/:id/filtering", (request, response) -> {
+            ImageSessions.Session session = session(request);
+            Filter f = parseFilter(request);
+            ImageFormat format = parseFormat(request, false);
+            Preview preview = parsePreview(request);
+
+            String key = ResultCache.key(session.digest, "session|" + filterParams(request) + "|" + format + "|" + preview);
+            ResultCache.Result result = cache.get(key, () -> {
+                try (Admission.Permit permit = admit(session, f, preview)) {
+                    // filters work in place, never on the session image itself
+                    BufferedImage inputImage = filtered(request, session, preview);
+                    return new ResultCache.Result(encode(inputImage, format).getBytes(StandardCharsets.UTF_8), "application/json");
+                }
+            });
+            metrics.sent(result.body.length);
+            return new String(result.body, StandardCharsets.UTF_8);
+        });
+
+        // binary filter request on a session image, same params and negotiated response as /filtering/binary
+        Spark.get("/session/:id/binary", (request, response) -> {
+            ImageSessions.Session session = session(request);
+            Filter f = parseFilter(request);
+            ImageFormat format = parseFormat(request, true);
+            Preview preview = parsePreview(request);
+
+            String key = ResultCache.key(session.digest, "session-binary|" + filterParams(request) + "|" + format + "|" + preview);
+            ResultCache.Result result = cache.get(key, () -> {
+                try (Admission.Permit permit = admit(session, f, preview)) {
+                    BufferedImage inputImage = filtered(request, session, preview);
+
+                    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                    io(Metrics.ENCODE, () -> {
+                        format.write(inputImage, encoded);
+                        return null;
+                    });
+                    return new ResultCache.Result(encoded.toByteArray(), format.contentType());
+                }
+            });
+
+            return send(response, result);
+        });
+
+        // image statistics, without filtering: channel, luma and hue histograms and the dominant hue
+        // the body is either base64 like /filtering, or raw image bytes with an image/*, octet-stream or multipart type
+        // Format of URLs: http://localhost:4567/stats, or http://localhost:4567/stats?preview=512 to measure a reduced image
+        Spark.post("/stats", (request, response) -> {
+            byte[] imageData = uploadBytes(request);
+            Preview preview = parsePreview(request);
+            metrics.filter("stats");
+
+            String key = ResultCache.key(imageData, "stats|" + preview);
+            ResultCache.Result result = cache.get(key, () -> {
+                long pixels = decodedPixels(imageData, preview);
+                try (Admission.Permit permit = admit(pixels, Admission.bytes(pixels, Collections.emptyList(), false))) {
+                    BufferedImage image = preview == null ? read(new ByteArrayInputStream(imageData))
+                            : readPreview(preview, imageData).image;
+                    return new ResultCache.Result(stats(image).getBytes(StandardCharsets.UTF_8), "application/json");
+                }
+            });
+            metrics.sent(result.body.length);
+            response.type(result.contentType);
+            return new String(result.body, StandardCharsets.UTF_8);
+        });
+
+        // statistics of a session image, same response as /stats
+        Spark.get("/session/:id/stats", (request, response) -> {
+            ImageSessions.Session session = session(request);
+            metrics.filter("stats");
+
+            String key = ResultCache.key(session.digest, "session-stats");
+            ResultCache.Result result = cache.get(key, () -> {
+                // measured in place, nothing is copied
+                try (Admission.Permit permit = admit((long) session.width() * session.height(), 0)) {
+                    return new ResultCache.Result(session.read(SparkServer::stats).getBytes(StandardCharsets.UTF_8),
+                            "application/json");
+                }
+            });
+            metrics.sent(result.body.length);
+            response.type(result.contentType);
+            return new String(result.body, StandardCharsets.UTF_8);
+        });
+
+        // frees a session before its ttl
+        Spark.delete("/session/:id", (request, response) -> {
+            if (!sessions.remove(request.params(":id"))) Spark.halt(404, "session does not exist");
+            return "";
+        });
+
+        // request, pool, cache and admission metrics in the Prometheus text format
+        Spark.get("/metrics", (request, response) -> {
+            response.type("text/plain; version=0.0.4");
+            return renderMetrics();
+        });
+
+        // admission counters, work in flight and queue depth
+        Spark.get("/admission", (request, response) -> {
+            response.type("application/json");
+            return new Gson().toJson(admission.stats());
+        });
+
+        // result cache counters
+        Spark.get("/cache", (request, response) -> {
+            response.type("application/json");
+            return new Gson().toJson(cache.stats());
+        });
+    }
+
+    // helper creating the filter given by the filter, int and c query params, halts on bad params
+    private static Filter parseFilter(Request request) {
+        return parseFilter(request, 1);
+    }
+
+    // helper creating the filter of a request for an image scaled down by scale, see FilterFactory
+    private static Filter parseFilter(Request request, double scale) {
+        String filter = request.queryParams("filter");
+        int intensity = 0;
+        int color = 0xFF0000;
+        try {
+            intensity = Integer.parseInt(request.queryParams("int"));
+        } catch (NumberFormatException e) {
+            Spark.halt(501, "bad int format");
+        }
+        try {
+            color = Integer.valueOf(request.queryParams("c"), 16);
+        } catch (Exception e) {
+            Spark.halt(501, "bad color format");
+        }
+        if (filter == null) Spark.halt(502, "missing one of base64 or filter");
+
+        // create filter
+        Filter f = factory.createFilter(filter.toLowerCase(), intensity, color, scale);
+        if (f == null) Spark.halt(503, "filter does not exist");
+        metrics.filter(filter.toLowerCase());
+        return f;
+    }
+
+    // helper creating the filters of a chain, filter:intensity:wColor separated by commas, halts on bad params
+    private static List<Filter> parseChain(String filters, double scale) {
+        List<Filter> steps = new ArrayList<>();
+        for (String step : filters.split(",")) {
+            String[] params = step.split(":");
             int intensity = 0;
             int color = 0xFF0000;
             try {
-                intensity = Integer.parseInt(request.queryParams("int"));
+                if (params.length > 1) intensity = Integer.parseInt(params[1]);
             } catch (NumberFormatException e) {
                 Spark.halt(501, "bad int format");
             }
             try {
-                color = Integer.valueOf(request.queryParams("c"), 16);
-            } catch (Exception e) {
+                if (params.length > 2) color = Integer.valueOf(params[2], 16);
+            } catch (NumberFormatException e) {
                 Spark.halt(501, "bad color format");
             }
+            Filter f = factory.createFilter(params[0].toLowerCase(), intensity, color, scale);
+            if (f == null) Spark.halt(503, "filter does not exist");
+            steps.add(f);
+        }
+        return steps;
+    }
 
-            if (base64 == null || filter == null) Spark.halt(502, "missing one of base64 or filter");
-            // create filter
+    // helper reading the preview query param, null for full resolution
+    private static Preview parsePreview(Request request) {
+        String value = request.queryParams("preview");
+        Preview preview = Preview.parse(value);
+        if (value != null && preview == null) Spark.halt(501, "bad preview format");
+        return preview;
+    }
 
-            Filter f = factory.createFilter(filter.toLowerCase(), intensity, color);
-            if (f == null) Spark.halt(503, "filter does not exist");
+    // helper decoding, filtering and encoding an image into out
+    // the image is read from imageData as it is decoded, after its header was used to admit the request
+    // very large images go through a scratch file tile by tile, unless a preview is asked or the filter needs the whole image
+    private static void process(Request request, Filter f, Preview preview, InputStream imageData,
+                                ImageFormat format, OutputStream out) throws IOException, Admission.Rejected, InterruptedException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(imageData)) {
+            ImageReader reader = reader(in);
+            try {
+                long pixels = (long) reader.getWidth(0) * reader.getHeight(0);
+                if (preview != null) {
+                    pixels = Math.min(pixels, 4L * preview.maxWidth * preview.maxHeight);
+                }
+                boolean tiled = tiled(f, preview, pixels);
+                try (Admission.Permit permit = admit(pixels, Admission.bytes(pixels, List.of(f), tiled))) {
+                    if (tiled) {
+                        // decoded a band of rows at a time straight into the scratch file
+                        try (TiledImage image = io(Metrics.DECODE, () -> TiledImage.read(reader))) {
+                            TiledImage filtered;
+                            try (Metrics.Stage stage = metrics.stage(Metrics.FILTER)) {
+                                filtered = image.filter(f);
+                            }
+                            metrics.pixels((long) image.width * image.height);
+                            try (TiledImage result = filtered) {
+                                io(Metrics.ENCODE, () -> {
+                                    format.write(result, out);
+                                    return null;
+                                });
+                            }
+                        }
+                    } else {
+                        BufferedImage image = filtered(request, f, preview, reader);
+                        io(Metrics.ENCODE, () -> {
+                            format.write(image, out);
+                            return null;
+                        });
+                    }
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // helper finding the reader of an encoded image, halts if no reader knows its format
+    // the input can seek back, tiled images are decoded in bands that each read it from the start of the image
+    private static ImageReader reader(ImageInputStream in) {
+        Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+        if (readers == null || !readers.hasNext()) Spark.halt(506, "image could not be read");
+        ImageReader reader = readers.next();
+        reader.setInput(in, false, true);
+        return reader;
+    }
+
+    // helper deciding if an image is filtered tile by tile from a scratch file
+    // previews are small enough, and filters that need the whole image cannot be tiled
+    private static boolean tiled(Filter f, Preview preview, long pixels) {
+        return preview == null && f.halo() >= 0 && pixels >= TILED_PIXELS;
+    }
+
+    // helper waiting until the work in flight leaves room for a request
+    // the rejection is answered by the exception handler of main, so every request it reaches gets its own Retry-After
+    private static Admission.Permit admit(long pixels, long bytes) throws Admission.Rejected, InterruptedException {
+        try (Metrics.Stage stage = metrics.stage(Metrics.ADMISSION)) {
+            return admission.acquire(pixels, bytes);
+        }
+    }
 
-            // get bytes from base64
-            byte[] imageData = new byte[0];
+    // helper admitting a filter request on a session image
+    private static Admission.Permit admit(ImageSessions.Session session, Filter f, Preview preview)
+            throws Admission.Rejected, InterruptedException {
+        long pixels = (long) session.width() * session.height();
+        if (preview != null) {
+            pixels = Math.min(pixels, (long) preview.maxWidth * preview.maxHeight);
+        }
+        return admit(pixels, Admission.bytes(pixels, List.of(f), false));
+    }
+
+    // helper estimating the pixels decoded for a request, from the image header
+    // previews are subsampled while decoding to at most about twice their size on each axis
+    private static long decodedPixels(byte[] imageData, Preview preview) {
+        long pixels = pixels(imageData);
+        return preview == null ? pixels : Math.min(pixels, 4L * preview.maxWidth * preview.maxHeight);
+    }
+
+    // helper reading the number of pixels of an image from its header, 0 if it cannot be read
+    private static long pixels(byte[] imageData) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData))) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                return 0;
+            }
+            ImageReader reader = readers.next();
             try {
-                imageData = Base64.getDecoder().decode(base64.replace(' ', '+'));
+                reader.setInput(in, true, true);
+                return (long) reader.getWidth(0) * reader.getHeight(0);
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            // left to the decoder to report
+            return 0;
+        }
+    }
+
+    // helper decoding an image and applying the filter of a request, at preview size if asked
+    // the filter is created again for previews, its pixel sizes scaled down with the image
+    private static BufferedImage filtered(Request request, Filter f, Preview preview, ImageReader reader) throws IOException {
+        if (preview == null) {
+            BufferedImage inputImage = PixelBuffer.normalize(io(Metrics.DECODE, () -> reader.read(0)));
+            apply(f, inputImage);
+            return inputImage;
+        }
+        Preview.Scaled scaled = io(Metrics.DECODE, () -> preview.read(reader));
+        apply(parseFilter(request, scaled.scale), scaled.image);
+        return scaled.image;
+    }
+
+    // helper applying the filter of a request to a copy of a session image, at preview size if asked
+    private static BufferedImage filtered(Request request, ImageSessions.Session session, Preview preview) {
+        Preview.Scaled scaled = session.copy(preview);
+        apply(parseFilter(request, scaled.scale), scaled.image);
+        return scaled.image;
+    }
+
+    // helper applying a filter, timed as the filter stage of the current request
+    private static void apply(Filter f, BufferedImage image) {
+        try (Metrics.Stage stage = metrics.stage(Metrics.FILTER)) {
+            f.applyFilter(image);
+        }
+        metrics.pixels((long) image.getWidth() * image.getHeight());
+    }
+
+    // helper rendering /metrics, the request metrics followed by gauges of the pools, cache and admission
+    private static String renderMetrics() {
+        StringBuilder sb = new StringBuilder();
+        metrics.render(sb);
+
+        ForkJoinPool pool = Filter.fjpool;
+        Metrics.metric(sb, "photofilter_fjpool_parallelism", "gauge", "Target parallelism of the filter pool", pool.getParallelism());
+        Metrics.metric(sb, "photofilter_fjpool_threads", "gauge", "Worker threads of the filter pool", pool.getPoolSize());
+        Metrics.metric(sb, "photofilter_fjpool_active_threads", "gauge", "Workers stealing or running tasks", pool.getActiveThreadCount());
+        Metrics.metric(sb, "photofilter_fjpool_running_threads", "gauge", "Workers not blocked", pool.getRunningThreadCount());
+        Metrics.metric(sb, "photofilter_fjpool_queued_tasks", "gauge", "Tasks queued by workers", pool.getQueuedTaskCount());
+        Metrics.metric(sb, "photofilter_fjpool_queued_submissions", "gauge", "Filters waiting to start", pool.getQueuedSubmissionCount());
+        Metrics.metric(sb, "photofilter_fjpool_steals_total", "counter", "Tasks stolen between workers", pool.getStealCount());
+
+        ThreadPoolExecutor ioPool = (ThreadPoolExecutor) io;
+        Metrics.metric(sb, "photofilter_io_active_threads", "gauge", "Threads decoding or encoding", ioPool.getActiveCount());
+        Metrics.metric(sb, "photofilter_io_queued_tasks", "gauge", "Decodes and encodes waiting for a thread", ioPool.getQueue().size());
+
+        ResultCache.Stats c = cache.stats();
+        Metrics.metric(sb, "photofilter_cache_hits_total", "counter", "Results served from the cache", c.hits);
+        Metrics.metric(sb, "photofilter_cache_misses_total", "counter", "Results computed", c.misses);
+        Metrics.metric(sb, "photofilter_cache_coalesced_total", "counter", "Results shared with a concurrent identical request", c.coalesced);
+        Metrics.metric(sb, "photofilter_cache_evictions_total", "counter", "Results dropped from the cache", c.evictions);
+        Metrics.metric(sb, "photofilter_cache_bytes", "gauge", "Bytes of the cached results", c.bytes);
+        Metrics.metric(sb, "photofilter_cache_entries", "gauge", "Cached results", c.entries);
+
+        Admission.Stats a = admission.stats();
+        Metrics.metric(sb, "photofilter_admission_inflight", "gauge", "Requests admitted and running", a.inflight);
+        Metrics.metric(sb, "photofilter_admission_inflight_pixels", "gauge", "Decoded pixels of the running requests", a.inflightPixels);
+        Metrics.metric(sb, "photofilter_admission_inflight_bytes", "gauge", "Estimated bytes of the running requests", a.inflightBytes);
+        Metrics.metric(sb, "photofilter_admission_queued", "gauge", "Requests waiting for admission", a.queued);
+        Metrics.metric(sb, "photofilter_admission_admitted_total", "counter", "Requests admitted", a.admitted);
+        Metrics.metric(sb, "photofilter_admission_rejected_total", "counter", "Requests rejected with a full queue", a.rejected);
+        Metrics.metric(sb, "photofilter_admission_timed_out_total", "counter", "Requests rejected after waiting", a.timedOut);
+        return sb.toString();
+    }
+
+    // helper writing an encoded image straight to the client
+    private static String send(Response response, ResultCache.Result result) throws IOException {
+        response.type(result.contentType);
+        OutputStream out = response.raw().getOutputStream();
+        out.write(result.body);
+        out.flush();
+        metrics.sent(result.body.length);
+        return "";
+    }
+
+    // helper finding the session of the :id path param, halts if it does not exist or expired
+    private static ImageSessions.Session session(Request request) {
+        ImageSessions.Session session = sessions.get(request.params(":id"));
+        if (session == null) Spark.halt(404, "session does not exist");
+        return session;
+    }
+
+    // helper listing the params the filter of a request depends on, for the cache key
+    private static String filterParams(Request request) {
+        return request.queryParams("filter").toLowerCase() + ":" + request.queryParams("int") + ":" + request.queryParams("c");
+    }
+
+    // helper reading the format, level and quality query params, and the Accept header if negotiating
+    private static ImageFormat parseFormat(Request request, boolean negotiate) {
+        ImageFormat format = ImageFormat.negotiate(request.queryParams("format"),
+                negotiate ? request.headers("Accept") : null,
+                request.queryParams("level"), request.queryParams("quality"));
+        if (format == null) Spark.halt(501, "bad format");
+        return format;
+    }
+
+    // helper reading the image bytes of the base64 body of a request, halts on bad input
+    private static byte[] decode(String base64) throws IOException {
+        // get bytes from base64
+        byte[] imageData = io(Metrics.BASE64_DECODE, () -> {
+            try {
+                return Base64.getDecoder().decode(base64.replace(' ', '+'));
             } catch (IllegalArgumentException e) {
                 Spark.halt(504, "invalid base64 scheme");
+                return null;
+            }
+        });
+        if (imageData.length == 0) Spark.halt(505, "invalid base64 scheme");
+        return imageData;
+    }
+
+    // helper reading the image bytes of a request whose body is base64 or, with an image/*, octet-stream
+    // or multipart type, raw bytes
+    private static byte[] uploadBytes(Request request) throws IOException {
+        String type = request.contentType();
+        if (type != null && (type.startsWith("image/") || type.startsWith("application/octet-stream")
+                || type.startsWith("multipart/form-data"))) {
+            return imageBytes(request);
+        }
+        String base64 = request.body();
+        if (base64 == null || base64.isEmpty()) Spark.halt(502, "missing base64");
+        return decode(base64);
+    }
+
+    // helper measuring an image for /stats, as json
+    private static String stats(BufferedImage image) {
+        ImageStats stats;
+        try (Metrics.Stage stage = metrics.stage(Metrics.FILTER)) {
+            stats = ImageStats.of(image);
+        }
+        metrics.pixels(stats.pixels);
+
+        long[] hues = new long[HueHistogram.HUES];
+        for (int h = 0; h < hues.length; h++) {
+            hues[h] = stats.hues.count(h);
+        }
+        int hue = stats.hues.dominant();
+        Map<String, Object> dominant = new LinkedHashMap<>();
+        dominant.put("hue", hue);
+        dominant.put("saturation", stats.hues.saturation(hue));
+        dominant.put("brightness", stats.hues.brightness(hue));
+        dominant.put("pixels", stats.hues.count(hue));
+        dominant.put("share", stats.hues.count(hue) / (double) stats.pixels);
+
+        Map<String, Object> res = new LinkedHashMap<>();
+        res.put("width", image.getWidth());
+        res.put("height", image.getHeight());
+        res.put("pixels", stats.pixels);
+        res.put("red", stats.red);
+        res.put("green", stats.green);
+        res.put("blue", stats.blue);
+        res.put("luma", stats.luma);
+        res.put("hue", hues);
+        res.put("dominant", dominant);
+        return new Gson().toJson(res);
+    }
+
+    // helper reading the image bytes of a binary request, either the whole body or its "image" multipart field
+    private static byte[] imageBytes(Request request) throws IOException {
+        byte[] imageData;
+        try (InputStream in = imageStream(request)) {
+            imageData = in.readAllBytes();
+        }
+        if (imageData.length == 0) Spark.halt(505, "empty body");
+        return imageData;
+    }
+
+    // helper opening the image bytes of a binary request, either the whole body or its "image" multipart field
+    private static InputStream imageStream(Request request) throws IOException {
+        String type = request.contentType();
+        if (type != null && type.startsWith("multipart/form-data")) {
+            request.attribute("org.eclipse.jetty.multipartConfig",
+                    new MultipartConfigElement(System.getProperty("java.io.tmpdir")));
+            try {
+                Part part = request.raw().getPart("image");
+                if (part == null) Spark.halt(502, "missing image part");
+                return part.getInputStream();
+            } catch (ServletException e) {
+                Spark.halt(505, "invalid multipart body");
             }
-            if (imageData.length == 0) Spark.halt(505, "invalid base64 scheme");
+        }
+        return request.raw().getInputStream();
+    }
 
-            // get BufferedImage
-            BufferedImage inputImage = ImageIO.read(new ByteArrayInputStream(imageData));
-            if (inputImage == null) Spark.halt(506, "base64 could not be read");
+    // helper decoding image bytes into a TYPE_INT_ARGB image, halts on unreadable images
+    private static BufferedImage read(InputStream in) throws IOException {
+        // get BufferedImage
+        BufferedImage inputImage = io(Metrics.DECODE, () -> ImageIO.read(in));
+        if (inputImage == null) Spark.halt(506, "image could not be read");
+        return PixelBuffer.normalize(inputImage);
+    }
 
-            // filter
-            f.applyFilter(inputImage);
+    // helper decoding image bytes at preview size, halts on unreadable images
+    private static Preview.Scaled readPreview(Preview preview, byte[] imageData) throws IOException {
+        Preview.Scaled scaled = io(Metrics.DECODE, () -> preview.read(imageData));
+        if (scaled == null) Spark.halt(506, "image could not be read");
+        return scaled;
+    }
 
-            // convert back to base64 uri
+    // helper converting an image back to json base64, png unless asked otherwise
+    private static String encode(BufferedImage image, ImageFormat format) throws IOException {
+        byte[] encoded = io(Metrics.ENCODE, () -> {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
-            ImageIO.write(inputImage, "png", out);
-            imageData = out.toByteArray();
-            String base64bytes = Base64.getEncoder().encodeToString(imageData);
-
-            // returns base64 representation
-            Gson gson = new Gson();
-            return gson.toJson(base64bytes);
-        });
-    }
-
-    private static void setup(){
-        Set<BufferedImage> tempE = new HashSet<>();
-        populate("emojis", tempE);
-        for (BufferedImage emoji : tempE) {
-            int count = 0;
-            for (int i = 0; i < emoji.getWidth(); i++) {
-                for (int j = 0; j < emoji.getHeight(); j++) {
-                    // count number of opaque pixels
-                    if ((emoji.getRGB(i, j) & ALPHA_MASK) != 0) {
-                        count++;
-                    }
-                }
+            format.write(image, out);
+            return out.toByteArray();
+        });
+        return io(Metrics.JSON, () -> json(encoded));
+    }
+
+    // helper running a decoding or encoding task on the io pool and waiting for it, timed as stage of the current request
+    // exceptions of the task, including Spark halts, are thrown to the caller
+    private static <T> T io(String stage, IoTask<T> task) throws IOException {
+        Metrics.Request request = metrics.request();
+        Future<T> future = io.submit(() -> {
+            try (Metrics.Stage timer = metrics.stage(request, stage)) {
+                return task.call();
             }
-            emojis.put(emoji, count);
+        });
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the io pool");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
         }
-        populate("ascii", asciis);
     }
 
-    // adds BufferedImages of emojis to set
-    private static void populate(String dir, Set<BufferedImage> converts) {
-        try {
-            String location = "src/main/resources/" + dir;
-            File[] images = new File(location).listFiles();
-            assert images != null;
-            for (File image : images) {
-                converts.add(ImageIO.read(image));
+    // helper creating the io pool, its daemon threads stop after a minute without work
+    // at most queue tasks wait for a thread, submitting more throws RejectedExecutionException, answered with 503
+    private static ExecutorService ioPool(int threads, int queue) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(Math.max(1, queue)), r -> {
+                    Thread t = new Thread(r, "image-io-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // helper converting encoded image bytes to json base64
+    private static String json(byte[] encoded) {
+        // convert back to base64 uri
+        String base64bytes = Base64.getEncoder().encodeToString(encoded);
+
+        // returns base64 representation
+        Gson gson = new Gson();
+        return gson.toJson(base64bytes);
+    }
+
+    /**
+     * Body of a streamed response, counting the bytes written through it
+     * The Content-Type and prefix are sent on the first write, so requests halted before they encode
+     * anything still get their error. Closing it flushes the response but leaves it open.
+     */
+    private static final class ResponseStream extends OutputStream {
+        private final Response response;
+        private final String contentType;
+        private final byte[] prefix;
+        private OutputStream out;
+        private long count;
+
+        ResponseStream(Response response, String contentType, String prefix) {
+            this.response = response;
+            this.contentType = contentType;
+            this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out().write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out().write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out().flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        // helper opening the response on the first write
+        private OutputStream out() throws IOException {
+            if (out == null) {
+                response.type(contentType);
+                out = response.raw().getOutputStream();
+                out.write(prefix);
+                count += prefix.length;
             }
-        } catch (IOException e) {
-            System.out.println("Input error: " + e);
+            return out;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Loads the emoji and ascii glyphs, packed at build time into GlyphAtlas.RESOURCE
+     * Called once by main, and by the benchmarks before creating emoji and ascii filters.
+     */
+    public static void setup(){
+        GlyphAtlas.load();
+    }
+}
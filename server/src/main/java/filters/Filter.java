@@ -1,8 +1,16 @@
 package filters;
 
 import java.awt.image.BufferedImage;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 
+/**
+ * Compiled filter: its kernels, tables and thresholds are computed once by the constructor and never change,
+ * so one instance can filter any number of images at once, see FilterFactory
+ * Everything a call of applyFilter writes lives in the Context of that call.
+ */
 public abstract class Filter {
 
     /**
@@ -13,14 +21,47 @@ public abstract class Filter {
     public static final int COLOR = 0xFF;
 
     /**
-     * pool used to parallelize filter
+     * live worker threads of fjpool
      */
-    public static final ForkJoinPool fjpool = new ForkJoinPool();
+    private static final Set<Thread> workers = ConcurrentHashMap.newKeySet();
 
     /**
-     * stores reference to image to apply filter on
+     * pool used to parallelize filter, photofilter.parallelism workers (default one per core)
+     * only pixel work runs on it, images are decoded and encoded on other threads
      */
-    protected BufferedImage bi;
+    public static final ForkJoinPool fjpool = new ForkJoinPool(Math.max(1,
+            Integer.getInteger("photofilter.parallelism", Runtime.getRuntime().availableProcessors())),
+            Worker::new, null, false);
+
+    /**
+     * Worker of fjpool, registered in workers while it runs
+     */
+    private static final class Worker extends ForkJoinWorkerThread {
+        private Worker(ForkJoinPool pool) {
+            super(pool);
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            workers.add(this);
+        }
+
+        @Override
+        protected void onTermination(Throwable exception) {
+            workers.remove(this);
+            super.onTermination(exception);
+        }
+    }
+
+    /**
+     * Used by the metrics to count the allocations of the pixel work
+     *
+     * @return ids of the live worker threads of fjpool
+     */
+    public static long[] workerIds() {
+        return workers.stream().mapToLong(Thread::getId).toArray();
+    }
 
     /**
      * invokes filtering of image
@@ -29,14 +70,105 @@ public abstract class Filter {
      */
     public abstract void applyFilter(BufferedImage bi);
 
+    /**
+     * Distance in pixels around an output pixel that its value depends on
+     * Used to split an image into tiles that can be filtered independently, see TiledImage
+     *
+     * @return largest reach of the filter, or -1 if pixels depend on the whole image
+     */
+    public int halo() {
+        return 0;
+    }
+
+    /**
+     * Tiles must start at multiples of this, for filters working on fixed blocks of pixels
+     *
+     * @return alignment of tiles, in pixels
+     */
+    public int tileAlign() {
+        return 1;
+    }
+
+    /**
+     * Work of filter(...) per element of its range, relative to a point filter on one pixel
+     * Used by Parallelize to size its bands.
+     *
+     * @return estimated cost of an element, at least 1
+     */
+    public int cost() {
+        return 1;
+    }
+
+    /**
+     * Widest range of columns filter(...) is called on, wider ranges are cut in strips of columns first
+     * Used by Parallelize, for filters whose state per call grows with the width of the range.
+     *
+     * @return largest width of a band, in pixels
+     */
+    public int maxBandWidth() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Runs the bands of task on fjpool, or directly on the calling thread when there is only one
+     *
+     * @param task range to filter
+     */
+    protected void parallelize(Parallelize task) {
+        if (task.sequential()) {
+            task.compute();
+        } else {
+            fjpool.invoke(task);
+        }
+    }
+
     /**
      * Applies filter in range
      * Called from Parallelized class
      *
+     * @param context image and state of the call of applyFilter the range belongs to
      * @param xlow lower x bound
      * @param xhi higher x bound
      * @param ylow lower y bound
      * @param yhi higher y bound
      */
-    protected abstract void filter(int xlow, int xhi, int ylow, int yhi);
+    protected abstract void filter(Context context, int xlow, int xhi, int ylow, int yhi);
+
+    /**
+     * Image filtered by one call of applyFilter, filters with more state per call extend it
+     */
+    public static class Context {
+
+        /**
+         * the image to apply the filter on
+         */
+        public final BufferedImage bi;
+
+        /**
+         * direct view of the pixels of bi, pixel (x, y) is at pixels[offset + y * stride + x]
+         */
+        public final PixelBuffer buffer;
+        public final int[] pixels;
+        public final int offset, stride;
+
+        /**
+         * Exposes the pixels of the image to apply the filter on
+         *
+         * @param bi the image to apply the filter on
+         */
+        public Context(BufferedImage bi) {
+            this.bi = bi;
+            this.buffer = PixelBuffer.of(bi);
+            this.pixels = buffer.data;
+            this.offset = buffer.offset;
+            this.stride = buffer.stride;
+        }
+
+        /**
+         * Makes the filtered pixels visible in the image
+         */
+        public void commit() {
+            buffer.commit();
+        }
+    }
 }
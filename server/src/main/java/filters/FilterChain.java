@@ -0,0 +1,95 @@
+package filters;
+
+import filters.copy.CopyFilter;
+import filters.inPlace.ChannelFilter;
+import filters.inPlace.ChannelLut;
+import filters.inPlace.FusedFilter;
+import filters.inPlace.InPlaceFilter;
+import filters.inPlace.LutFilter;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FilterChain {
+
+    /**
+     * filters to apply in order, consecutive point filters fused into one
+     */
+    private final List<Filter> steps;
+
+    /**
+     * @param filters filters to apply, in order
+     */
+    public FilterChain(List<Filter> filters) {
+        steps = new ArrayList<>();
+        List<InPlaceFilter> run = new ArrayList<>();
+        for (Filter f : filters) {
+            if (f instanceof InPlaceFilter) {
+                run.add((InPlaceFilter) f);
+            } else {
+                fuse(run);
+                steps.add(f);
+            }
+        }
+        fuse(run);
+    }
+
+    /**
+     * applies every filter of the chain to bi
+     * copy filters share one scratch buffer
+     *
+     * @param bi the image to apply the filters on
+     */
+    public void applyFilter(BufferedImage bi) {
+        int[] scratch = null;
+        for (Filter f : steps) {
+            if (f instanceof CopyFilter) {
+                if (scratch == null) {
+                    scratch = new int[bi.getWidth() * bi.getHeight()];
+                }
+                ((CopyFilter) f).applyFilter(bi, scratch);
+            } else {
+                f.applyFilter(bi);
+            }
+        }
+    }
+
+    /**
+     * @return number of passes over the image, after fusion
+     */
+    public int passes() {
+        return steps.size();
+    }
+
+    // helper closing a run of point filters, so they share a single traversal of the pixels
+    // consecutive channel filters are composed into a single set of lookup tables
+    private void fuse(List<InPlaceFilter> run) {
+        List<InPlaceFilter> merged = new ArrayList<>();
+        ChannelLut lut = null;
+        for (InPlaceFilter f : run) {
+            if (f instanceof ChannelFilter) {
+                ChannelLut next = ((ChannelFilter) f).lut();
+                lut = lut == null ? next : lut.then(next);
+            } else {
+                if (lut != null) {
+                    merged.add(new LutFilter(lut));
+                    lut = null;
+                }
+                merged.add(f);
+            }
+        }
+        if (lut != null) {
+            merged.add(new LutFilter(lut));
+        }
+        run.clear();
+        run.addAll(merged);
+
+        if (run.size() == 1) {
+            steps.add(run.get(0));
+        } else if (run.size() > 1) {
+            steps.add(new FusedFilter(run));
+        }
+        run.clear();
+    }
+}
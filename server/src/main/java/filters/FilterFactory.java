@@ -1,11 +1,29 @@
 package filters;
 
-import SparkServer.SparkServer;
 import filters.copy.*;
 import filters.inPlace.*;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class FilterFactory {
 
+    /**
+     * most filters kept for reuse, least recently used ones are dropped first
+     */
+    private static final int MAX_CACHED = 256;
+
+    /**
+     * filters created so far by name and the params build(...) uses, in access order, guarded by itself
+     * filters are immutable once created, so concurrent requests with the same params share one
+     */
+    private final Map<String, Filter> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Filter> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
     public FilterFactory(){}
 
     /**
@@ -15,6 +33,42 @@ public class FilterFactory {
      * @return Filter object based on name, and null if filter does not exist
      */
     public Filter createFilter(String name, int intensity, int color){
+        return createFilter(name, intensity, color, 1);
+    }
+
+    /**
+     * Creates the filter based on the name, for an image scaled down from the one the params were chosen on
+     * Sizes in pixels derived from intensity (blur kernels, median window) are scaled too,
+     * so a preview looks like the full resolution result.
+     *
+     * @param name name of the filter to generate
+     * @param scale size of the filtered image over the size of the full resolution image, at most 1
+     * @return Filter object based on name, and null if filter does not exist
+     */
+    public Filter createFilter(String name, int intensity, int color, double scale){
+        // keyed on what the filter is built from, so scales rounding to the same kernel share it
+        intensity = intensity(name, intensity, scale);
+        color = "color".equals(name) ? color : 0;
+        String key = name + ":" + intensity + ":" + color;
+        synchronized (cache) {
+            Filter cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // built outside the lock, two requests may build the same filter and keep either
+        Filter f = build(name, intensity, color);
+        if (f == null) {
+            return null;
+        }
+        synchronized (cache) {
+            Filter cached = cache.putIfAbsent(key, f);
+            return cached != null ? cached : f;
+        }
+    }
+
+    // helper building a new filter from the intensity given by intensity(...), null if the name is unknown
+    private static Filter build(String name, int intensity, int color) {
         switch(name) {
             case "invert":
                 return new Invert();
@@ -23,11 +77,11 @@ public class FilterFactory {
             case "bw":
                 return new BlackWhite(intensity);
             case "emoji":
-                return new Emojify(SparkServer.emojis);
+                return new Emojify(GlyphAtlas.load().emojis());
             case "ascii":
-                return new Asciify(SparkServer.asciis, false);
+                return new Asciify(GlyphAtlas.load().asciis(), false);
             case "ansi":
-                return new Asciify(SparkServer.asciis, true);
+                return new Asciify(GlyphAtlas.load().asciis(), true);
             case "bright":
                 return new Brightness(intensity);
             case "sat":
@@ -39,12 +93,16 @@ public class FilterFactory {
                 return new BoxBlur(intensity);
             case "gauss":
                 return new GaussBlur(intensity);
+            case "bigbox":
+                return new FastBoxBlur(intensity);
+            case "biggauss":
+                return new FastGaussBlur(intensity);
             case "outline":
                 return new Outline();
             case "sharp":
                 return new Sharp(intensity);
             case "noise":
-                return new Noise();
+                return new Noise(intensity);
 
             case "dom":
                 return new DominantHue(intensity);
@@ -60,4 +118,53 @@ public class FilterFactory {
                 return null;
         }
     }
+
+    // helper giving the intensity build(...) uses: scaled for the filters sized in pixels, 0 when it is not used
+    private static int intensity(String name, int intensity, double scale) {
+        switch (name) {
+            case "box":
+            case "gauss":
+                return scaleKernel(intensity, scale);
+            case "bigbox":
+            case "biggauss":
+                return scaleRadius(intensity, scale);
+            case "noise":
+                return scaleNoise(intensity, scale);
+            case "invert":
+            case "gray":
+            case "emoji":
+            case "ascii":
+            case "ansi":
+            case "color":
+            case "outline":
+                return 0;
+            default:
+                return intensity;
+        }
+    }
+
+    // helper giving the intensity of BoxBlur and GaussBlur whose kernel (intensity / 10 + 1 wide) is scaled
+    private static int scaleKernel(int intensity, double scale) {
+        if (scale >= 1) {
+            return intensity / 10 * 10;
+        }
+        int dimension = (int) Math.max(1, Math.round((intensity / 10 + 1) * scale));
+        return (dimension - 1) * 10;
+    }
+
+    // helper scaling the radius of the fast blurs, the intensity is the radius in pixels
+    private static int scaleRadius(int radius, double scale) {
+        radius = scale >= 1 ? radius : (int) Math.max(1, Math.round(radius * scale));
+        return Math.max(1, Math.min(FastBlur.MAX_RADIUS, radius));
+    }
+
+    // helper giving the smallest intensity of Noise whose median radius (1 + intensity * 14 / 100) is scaled
+    private static int scaleNoise(int intensity, double scale) {
+        int radius = 1 + intensity * (Noise.MAX_RADIUS - 1) / 100;
+        if (scale < 1) {
+            radius = (int) Math.round(radius * scale);
+        }
+        radius = Math.max(1, Math.min(Noise.MAX_RADIUS, radius));
+        return ((radius - 1) * 100 + Noise.MAX_RADIUS - 2) / (Noise.MAX_RADIUS - 1);
+    }
 }
@@ -0,0 +1,170 @@
+package filters;
+
+/**
+ * Pixel counts, and saturation and brightness sums, by hue in degrees
+ * Built by ParallelReduce, one histogram per band merged as the bands join.
+ */
+public final class HueHistogram {
+
+    /**
+     * number of hues, one per degree
+     */
+    public static final int HUES = 360;
+
+    /**
+     * hue of every color, by r - g and r - b, at (r - g + 255) * DIFFS + r - b + 255
+     * the hue only depends on these differences, so the table is exact
+     */
+    private static final int DIFFS = 2 * 255 + 1;
+    private static final short[] TABLE = table();
+
+    private final long[] counts = new long[HUES];
+
+    /**
+     * sums of 1 - min / max and of max over the pixels of every hue, null when only counting
+     */
+    private final double[] saturations;
+    private final long[] maxima;
+
+    /**
+     * @param full false to only count pixels
+     */
+    public HueHistogram(boolean full) {
+        saturations = full ? new double[HUES] : null;
+        maxima = full ? new long[HUES] : null;
+    }
+
+    /**
+     * @param full false to only count pixels, enough for dominant()
+     * @return reducer building the histogram of the pixels of buffer, alpha is ignored
+     */
+    public static ParallelReduce.Reducer<HueHistogram> of(PixelBuffer buffer, boolean full) {
+        return new ParallelReduce.Reducer<>() {
+            @Override
+            public HueHistogram create() {
+                return new HueHistogram(full);
+            }
+
+            @Override
+            public void accumulate(HueHistogram partial, int xlow, int xhi, int ylow, int yhi) {
+                for (int j = ylow; j < yhi; j++) {
+                    int row = buffer.offset + j * buffer.stride;
+                    for (int i = xlow; i < xhi; i++) {
+                        partial.add(buffer.data[row + i]);
+                    }
+                }
+            }
+
+            @Override
+            public HueHistogram merge(HueHistogram left, HueHistogram right) {
+                return left.merge(right);
+            }
+
+            @Override
+            public int cost() {
+                // a table lookup per pixel, and a division for the saturation
+                return full ? 4 : 2;
+            }
+        };
+    }
+
+    /**
+     * Counts a pixel
+     *
+     * @param rgb packed RGB value, alpha is ignored
+     */
+    public void add(int rgb) {
+        int h = hue(rgb);
+        counts[h]++;
+        if (saturations != null) {
+            int r = Filter.COLOR & (rgb >> 16);
+            int g = Filter.COLOR & (rgb >> 8);
+            int b = Filter.COLOR & rgb;
+            int max = Math.max(r, Math.max(g, b));
+            int min = Math.min(r, Math.min(g, b));
+            saturations[h] += max > 0 ? 1 - min / (0.0 + max) : 0;
+            maxima[h] += max;
+        }
+    }
+
+    /**
+     * Adds the counts of other to this histogram
+     *
+     * @return this
+     */
+    public HueHistogram merge(HueHistogram other) {
+        for (int h = 0; h < HUES; h++) {
+            counts[h] += other.counts[h];
+            if (saturations != null) {
+                saturations[h] += other.saturations[h];
+                maxima[h] += other.maxima[h];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return pixels of hue h
+     */
+    public long count(int h) {
+        return counts[h];
+    }
+
+    /**
+     * @return most frequent hue, the lowest of equally frequent ones
+     */
+    public int dominant() {
+        int hue = 0;
+        for (int h = 1; h < HUES; h++) {
+            if (counts[h] > counts[hue]) {
+                hue = h;
+            }
+        }
+        return hue;
+    }
+
+    /**
+     * @return average saturation of the pixels of hue h, 0 to 1, NaN if there are none or only counting
+     */
+    public double saturation(int h) {
+        return saturations == null ? Double.NaN : saturations[h] / counts[h];
+    }
+
+    /**
+     * @return average brightness of the pixels of hue h, 0 to 1, NaN if there are none or only counting
+     */
+    public double brightness(int h) {
+        return maxima == null ? Double.NaN : maxima[h] / 255.0 / counts[h];
+    }
+
+    /**
+     * Hue of a color in degrees, grays are hue 0
+     *
+     * @param rgb packed RGB value, alpha is ignored
+     * @return hue, 0 to 359
+     */
+    public static int hue(int rgb) {
+        int r = Filter.COLOR & (rgb >> 16);
+        int g = Filter.COLOR & (rgb >> 8);
+        int b = Filter.COLOR & rgb;
+        return TABLE[(r - g + 255) * DIFFS + r - b + 255];
+    }
+
+    // helper computing the hue of every pair of differences u = r - g, v = r - b
+    // r - g / 2 - b / 2 == (u + v) / 2 and r^2 + g^2 + b^2 - rg - rb - gb == u^2 + v^2 - uv, both exactly,
+    // and b > g when v < u, so entries are the hues the acos formula gives for every color
+    private static short[] table() {
+        short[] table = new short[DIFFS * DIFFS];
+        for (int u = -255; u <= 255; u++) {
+            for (int v = -255; v <= 255; v++) {
+                // NaN for grays, which rounds to 0
+                int h = (int) Math.round(180.0 / Math.PI * Math.acos((u + v) / 2.0 / Math.sqrt(u * u + v * v - u * v)));
+                if (v < u) {
+                    h = 360 - h;
+                }
+                table[(u + 255) * DIFFS + v + 255] = (short) (h % 360);
+            }
+        }
+        return table;
+    }
+}
@@ -0,0 +1,83 @@
+package filters;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Channel, luma and hue histograms of an image, computed in parallel by ParallelReduce
+ */
+public final class ImageStats {
+
+    /**
+     * pixels by value of each channel, and by luma (0.299 R + 0.587 G + 0.114 B, rounded)
+     */
+    public final long[] red = new long[256], green = new long[256], blue = new long[256], luma = new long[256];
+
+    /**
+     * pixels by hue
+     */
+    public final HueHistogram hues = new HueHistogram(true);
+
+    /**
+     * pixels counted
+     */
+    public long pixels;
+
+    /**
+     * Computes the histograms of an image, alpha is ignored
+     *
+     * @param bi image to read, not modified
+     */
+    public static ImageStats of(BufferedImage bi) {
+        PixelBuffer buffer = PixelBuffer.of(bi);
+        return ParallelReduce.reduce(0, buffer.width, 0, buffer.height, new ParallelReduce.Reducer<>() {
+            @Override
+            public ImageStats create() {
+                return new ImageStats();
+            }
+
+            @Override
+            public void accumulate(ImageStats partial, int xlow, int xhi, int ylow, int yhi) {
+                for (int j = ylow; j < yhi; j++) {
+                    int row = buffer.offset + j * buffer.stride;
+                    for (int i = xlow; i < xhi; i++) {
+                        partial.add(buffer.data[row + i]);
+                    }
+                }
+            }
+
+            @Override
+            public ImageStats merge(ImageStats left, ImageStats right) {
+                return left.merge(right);
+            }
+
+            @Override
+            public int cost() {
+                return 6;
+            }
+        });
+    }
+
+    private void add(int argb) {
+        int r = Filter.COLOR & (argb >> 16);
+        int g = Filter.COLOR & (argb >> 8);
+        int b = Filter.COLOR & argb;
+        red[r]++;
+        green[g]++;
+        blue[b]++;
+        luma[(299 * r + 587 * g + 114 * b + 500) / 1000]++;
+        hues.add(argb);
+        pixels++;
+    }
+
+    private ImageStats merge(ImageStats other) {
+        for (int v = 0; v < 256; v++) {
+            red[v] += other.red[v];
+            green[v] += other.green[v];
+            blue[v] += other.blue[v];
+            luma[v] += other.luma[v];
+        }
+        hues.merge(other.hues);
+        pixels += other.pixels;
+        return this;
+    }
+}
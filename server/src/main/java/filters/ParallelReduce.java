@@ -0,0 +1,94 @@
+package filters;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes a value over a range of pixels in the bands of rows of Parallelize
+ * Every band accumulates into its own partial result, so bands share nothing while they run,
+ * and partial results are merged pairwise as the tasks join.
+ *
+ * @param <T> partial result type
+ */
+public class ParallelReduce<T> extends RecursiveTask<T> {
+
+    /**
+     * How a value is computed over a range
+     *
+     * @param <T> partial result type
+     */
+    public interface Reducer<T> {
+
+        /**
+         * @return empty partial result of a band
+         */
+        T create();
+
+        /**
+         * Adds the elements of a range to a partial result
+         */
+        void accumulate(T partial, int xlow, int xhi, int ylow, int yhi);
+
+        /**
+         * Merges two partial results, right covering the rows after left
+         *
+         * @return merged result, may be left or right updated in place
+         */
+        T merge(T left, T right);
+
+        /**
+         * @return work per element, relative to a point filter on one pixel, see Filter.cost()
+         */
+        default int cost() {
+            return 1;
+        }
+    }
+
+    final int xlow, xhi, ylow, yhi;
+    final Reducer<T> reducer;
+
+    /**
+     * rows per band
+     */
+    final int band;
+
+    private ParallelReduce(int xlow, int xhi, int ylow, int yhi, Reducer<T> reducer, int band) {
+        this.xlow = xlow;
+        this.xhi = xhi;
+        this.ylow = ylow;
+        this.yhi = yhi;
+        this.reducer = reducer;
+        this.band = band;
+    }
+
+    /**
+     * Reduces a range on Filter.fjpool, or on the calling thread when it is a single band
+     *
+     * @return result over the whole range
+     */
+    public static <T> T reduce(int xlow, int xhi, int ylow, int yhi, Reducer<T> reducer) {
+        ParallelReduce<T> task = new ParallelReduce<>(xlow, xhi, ylow, yhi, reducer,
+                Parallelize.band(yhi - ylow, xhi - xlow, reducer.cost(), 1));
+        return task.sequential() ? task.compute() : Filter.fjpool.invoke(task);
+    }
+
+    private boolean sequential() {
+        return yhi - ylow <= band;
+    }
+
+    @Override
+    protected T compute() {
+        if (sequential()) {
+            T partial = reducer.create();
+            reducer.accumulate(partial, xlow, xhi, ylow, yhi);
+            return partial;
+        }
+        // split on a band boundary, like Parallelize
+        int bands = (yhi - ylow + band - 1) / band;
+        int mid = ylow + bands / 2 * band;
+        ParallelReduce<T> left = new ParallelReduce<>(xlow, xhi, ylow, mid, reducer, band);
+        ParallelReduce<T> right = new ParallelReduce<>(xlow, xhi, mid, yhi, reducer, band);
+        left.fork();
+        T r = right.compute();
+        return reducer.merge(left.join(), r);
+    }
+}
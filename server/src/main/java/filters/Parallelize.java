@@ -2,41 +2,139 @@ package filters;
 
 import java.util.concurrent.*;
 
+/**
+ * Filters a range of pixels in contiguous bands of rows, or of columns for passes that sweep down columns
+ * Bands are sized from the range, the pool parallelism and Filter.cost(), so every worker gets a few
+ * bands to balance the load and no band is too small to pay for its task. Ranges with less work than
+ * two bands are a single band, which Filter.parallelize runs on the calling thread.
+ * Ranges wider than Filter.maxBandWidth() are first split into strips of columns, each cut in bands of rows.
+ */
 public class Parallelize extends RecursiveAction {
-    int cutoff = 1000;
-    int xlow, xhi, ylow, yhi;
-    Filter filter;
 
-    public Parallelize(int xlow, int xhi, int ylow, int yhi, Filter filter) {
+    /**
+     * least work of a band, in elements times Filter.cost()
+     */
+    static final long MIN_BAND_WORK = 1 << 15;
+
+    /**
+     * bands per worker, so workers that finish early can take over from slower ones
+     */
+    static final int BANDS_PER_WORKER = 4;
+
+    final int xlow, xhi, ylow, yhi;
+    final Filter filter;
+    final Filter.Context context;
+
+    /**
+     * rows per band, or columns per band when columns is true
+     */
+    final int band;
+    final boolean columns;
+
+    /**
+     * columns per strip, bands of rows are at most this wide
+     */
+    final int strip;
+
+    /**
+     * Splits the range into bands of rows sized for the filter
+     */
+    public Parallelize(int xlow, int xhi, int ylow, int yhi, Filter filter, Filter.Context context) {
+        this(xlow, xhi, ylow, yhi, filter, context, strip(xlow, xhi, filter), 0);
+    }
+
+    /**
+     * Splits the range into bands of rows of at least cutoff elements, whatever the filter
+     */
+    public Parallelize(int xlow, int xhi, int ylow, int yhi, Filter filter, Filter.Context context, int cutoff) {
+        this(xlow, xhi, ylow, yhi, filter, context, strip(xlow, xhi, filter), cutoff);
+    }
+
+    // helper sizing the bands of rows of strips of the given width, from cutoff if it is not 0
+    private Parallelize(int xlow, int xhi, int ylow, int yhi, Filter filter, Filter.Context context, int strip,
+                        int cutoff) {
+        this(xlow, xhi, ylow, yhi, filter, context, cutoff > 0 ? Math.max(1, cutoff / strip)
+                : band(yhi - ylow, strip, filter.cost(), 1), false, strip);
+    }
+
+    private Parallelize(int xlow, int xhi, int ylow, int yhi, Filter filter, Filter.Context context, int band,
+                        boolean columns, int strip) {
         this.xlow = xlow;
         this.xhi = xhi;
         this.ylow = ylow;
         this.yhi = yhi;
         this.filter = filter;
+        this.context = context;
+        this.band = band;
+        this.columns = columns;
+        this.strip = strip;
+    }
+
+    /**
+     * Splits the range into bands of at least minColumns columns sized for the filter
+     * For passes running down the columns, each band is walked row by row over its columns.
+     */
+    public static Parallelize columns(int xlow, int xhi, int ylow, int yhi, Filter filter, Filter.Context context,
+                                      int minColumns) {
+        return new Parallelize(xlow, xhi, ylow, yhi, filter, context,
+                band(xhi - xlow, yhi - ylow, filter.cost(), minColumns), true, Math.max(1, xhi - xlow));
     }
 
-    public Parallelize(int xlow, int xhi, int ylow, int yhi, Filter filter, int cutoff) {
-        this(xlow, xhi, ylow, yhi, filter);
-        this.cutoff = cutoff;
+    /**
+     * @return true if the range is a single band
+     */
+    public boolean sequential() {
+        return (columns ? xhi - xlow : yhi - ylow) <= band && xhi - xlow <= strip;
     }
 
     @Override
     public void compute() {
-        if ((xhi - xlow) * (yhi - ylow) <= cutoff) {
-            filter.filter(xlow, xhi, ylow, yhi);
+        if (sequential()) {
+            filter.filter(context, xlow, xhi, ylow, yhi);
+            return;
+        }
+        // strips first, then bands, each split on a boundary so they are the same whatever the order of the splits
+        boolean across = columns || xhi - xlow > strip;
+        int step = across && !columns ? strip : band;
+        int low = across ? xlow : ylow;
+        int hi = across ? xhi : yhi;
+        int bands = (hi - low + step - 1) / step;
+        int mid = low + bands / 2 * step;
+        Parallelize left, right;
+        if (across) {
+            left = new Parallelize(xlow, mid, ylow, yhi, filter, context, band, columns, strip);
+            right = new Parallelize(mid, xhi, ylow, yhi, filter, context, band, columns, strip);
         } else {
-            Parallelize left, right;
-            if ((xhi - xlow) > (yhi - ylow)) {
-                left = new Parallelize(xlow, (xhi + xlow) / 2, ylow, yhi, filter, cutoff);
-                right = new Parallelize((xhi + xlow) / 2, xhi, ylow, yhi, filter, cutoff);
-            } else {
-                // left is smaller, right is bigger
-                left = new Parallelize(xlow, xhi, ylow, (yhi + ylow) / 2, filter, cutoff);
-                right = new Parallelize(xlow, xhi, (yhi + ylow) / 2, yhi, filter, cutoff);
-            }
-            left.fork();
-            right.compute();
-            left.join();
+            left = new Parallelize(xlow, xhi, ylow, mid, filter, context, band, false, strip);
+            right = new Parallelize(xlow, xhi, mid, yhi, filter, context, band, false, strip);
+        }
+        left.fork();
+        right.compute();
+        left.join();
+    }
+
+    // helper giving the width of the strips of a range of rows, the whole range unless the filter bounds it
+    // strips of a wider range are about as wide as each other, rather than leaving a narrow last one
+    private static int strip(int xlow, int xhi, Filter filter) {
+        int width = Math.max(1, xhi - xlow);
+        int max = Math.max(1, filter.maxBandWidth());
+        if (width <= max) {
+            return width;
+        }
+        int strips = (width + max - 1) / max;
+        return (width + strips - 1) / strips;
+    }
+
+    // helper sizing bands along an axis of length lines, each line being across elements of the given cost
+    static int band(int lines, int across, int cost, int min) {
+        lines = Math.max(1, lines);
+        long lineWork = Math.max(1L, (long) across * Math.max(1, cost));
+        int workers = Filter.fjpool.getParallelism();
+        if (workers <= 1 || lines * lineWork < 2 * MIN_BAND_WORK) {
+            return lines;
         }
+        int balanced = (lines + workers * BANDS_PER_WORKER - 1) / (workers * BANDS_PER_WORKER);
+        int worthwhile = (int) Math.min(lines, (MIN_BAND_WORK + lineWork - 1) / lineWork);
+        return Math.min(lines, Math.max(min, Math.max(balanced, worthwhile)));
     }
-}
\ No newline at end of file
+}
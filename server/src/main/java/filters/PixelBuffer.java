@@ -0,0 +1,119 @@
+package filters;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Direct int[] view of the pixels of a TYPE_INT_ARGB BufferedImage
+ * Pixel (x, y) is stored at data[offset + y * stride + x] as packed ARGB
+ */
+public final class PixelBuffer {
+
+    /**
+     * backing pixel array, shared with the image when it is already TYPE_INT_ARGB
+     */
+    public final int[] data;
+
+    /**
+     * dimensions of the image
+     */
+    public final int width, height;
+
+    /**
+     * index of pixel (0, 0) and distance between two rows in data
+     */
+    public final int offset, stride;
+
+    /**
+     * image the pixels were taken from, and whether data is a detached copy of it
+     */
+    private final BufferedImage source;
+    private final boolean detached;
+
+    private PixelBuffer(BufferedImage source, int[] data, int offset, int stride, boolean detached) {
+        this.source = source;
+        this.data = data;
+        this.width = source.getWidth();
+        this.height = source.getHeight();
+        this.offset = offset;
+        this.stride = stride;
+        this.detached = detached;
+    }
+
+    /**
+     * Wraps the pixels of an image
+     * TYPE_INT_ARGB images are wrapped without copying, every other type is read once
+     * into a detached array that must be written back with commit()
+     *
+     * @param bi image to wrap
+     * @return pixel view of bi
+     */
+    public static PixelBuffer of(BufferedImage bi) {
+        if (isArgb(bi)) {
+            WritableRaster raster = bi.getRaster();
+            DataBufferInt db = (DataBufferInt) raster.getDataBuffer();
+            int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            int offset = db.getOffset() - raster.getSampleModelTranslateY() * stride - raster.getSampleModelTranslateX();
+            return new PixelBuffer(bi, db.getData(), offset, stride, false);
+        }
+        int[] data = bi.getRGB(0, 0, bi.getWidth(), bi.getHeight(), null, 0, bi.getWidth());
+        return new PixelBuffer(bi, data, 0, bi.getWidth(), true);
+    }
+
+    /**
+     * Converts a decoded image to TYPE_INT_ARGB, so filters can work on it without copies
+     * Pixel values are the same as the ones returned by bi.getRGB
+     *
+     * @param bi image to convert
+     * @return bi if it already is TYPE_INT_ARGB, a converted copy otherwise
+     */
+    public static BufferedImage normalize(BufferedImage bi) {
+        if (isArgb(bi)) {
+            return bi;
+        }
+        int w = bi.getWidth();
+        int h = bi.getHeight();
+        BufferedImage res = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        int[] data = ((DataBufferInt) res.getRaster().getDataBuffer()).getData();
+        bi.getRGB(0, 0, w, h, data, 0, w);
+        return res;
+    }
+
+    /**
+     * Writes the pixels back to the source image if they were copied out of it
+     */
+    public void commit() {
+        if (detached) {
+            source.setRGB(0, 0, width, height, data, offset, stride);
+        }
+    }
+
+    /**
+     * @return index of pixel (x, y) in data
+     */
+    public int index(int x, int y) {
+        return offset + y * stride + x;
+    }
+
+    /**
+     * @return packed ARGB value of pixel (x, y)
+     */
+    public int get(int x, int y) {
+        return data[offset + y * stride + x];
+    }
+
+    /**
+     * sets pixel (x, y) to the packed ARGB value argb
+     */
+    public void set(int x, int y, int argb) {
+        data[offset + y * stride + x] = argb;
+    }
+
+    private static boolean isArgb(BufferedImage bi) {
+        return bi.getType() == BufferedImage.TYPE_INT_ARGB
+                && bi.getRaster().getSampleModel() instanceof SinglePixelPackedSampleModel
+                && bi.getRaster().getDataBuffer() instanceof DataBufferInt;
+    }
+}
@@ -0,0 +1,544 @@
+package filters;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * ARGB image stored in a memory mapped scratch file rather than on the heap
+ * Pixel (x, y) is the int at index y * width + x of the file. Filters run on it tile by tile,
+ * each tile padded with the halo of the filter, so the heap used does not depend on the image size.
+ */
+public final class TiledImage implements Closeable {
+
+    /**
+     * side of the tiles filters run on, before padding, unless the halo of the filter calls for larger ones
+     */
+    public static final int TILE = 1024;
+
+    /**
+     * largest size of a single mapping, files are mapped in bands of whole rows
+     */
+    private static final long CHUNK_BYTES = 1L << 30;
+
+    /**
+     * pixels decoded at once by read(ImageReader) when the reader cannot write its rows in order,
+     * in bands of whole rows
+     */
+    public static final int DECODE_PIXELS = 1 << 24;
+
+    /**
+     * formats whose readers write the rows of the image top to bottom through its raster,
+     * unless it is interlaced or progressive, which makes them write every row once per pass
+     */
+    private static final Set<String> SEQUENTIAL = Set.of("png", "jpeg");
+
+    /**
+     * dimensions of the image
+     */
+    public final int width, height;
+
+    private final FileChannel channel;
+
+    /**
+     * mappings of chunkRows rows each, the last one may be shorter, dropped by close()
+     */
+    private final IntBuffer[] chunks;
+    private final int chunkRows;
+
+    private TiledImage(int width, int height, FileChannel channel) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.channel = channel;
+        this.chunkRows = (int) Math.max(1, CHUNK_BYTES / (4L * width));
+        this.chunks = new IntBuffer[(height + chunkRows - 1) / chunkRows];
+        for (int c = 0; c < chunks.length; c++) {
+            int rows = Math.min(chunkRows, height - c * chunkRows);
+            chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE, 4L * width * c * chunkRows, 4L * width * rows)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+    }
+
+    /**
+     * Creates a transparent black image backed by a new scratch file in java.io.tmpdir
+     * The file is deleted when the image is closed.
+     */
+    public static TiledImage create(int width, int height) throws IOException {
+        Path file = Files.createTempFile("photofilter", ".tiles");
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        try {
+            return new TiledImage(width, height, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes the first image of a reader into a new tiled image
+     * PNG and JPEG images are decoded in a single pass into a destination image of which only a window
+     * of rows is on the heap, see Rows. Other formats, and images whose rows do not come in order like
+     * interlaced PNGs and progressive JPEGs, are decoded a band of rows at a time through source regions,
+     * which readers decode from the start of the image, so the input must be able to seek back.
+     * Pixel values are the same as the ones returned by getRGB on the whole decoded image.
+     *
+     * @param reader reader whose input is set
+     */
+    public static TiledImage read(ImageReader reader) throws IOException {
+        TiledImage res = create(reader.getWidth(0), reader.getHeight(0));
+        try {
+            if (!SEQUENTIAL.contains(reader.getFormatName().toLowerCase(Locale.ROOT)) || !res.readRows(reader)) {
+                res.readBands(reader);
+            }
+        } catch (IOException | RuntimeException e) {
+            res.close();
+            throw e;
+        }
+        return res;
+    }
+
+    // helper decoding the image in a single pass, false if the reader wrote its rows out of order
+    // destinations are addressed with ints, so images of more elements are decoded in as few regions as fit
+    private boolean readRows(ImageReader reader) throws IOException {
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (!types.hasNext()) {
+            return false;
+        }
+        ImageTypeSpecifier type = types.next();
+        // decoded rows are converted TILE * TILE pixels at a time
+        int windowRows = Math.min(height, Math.max(1, TILE * TILE / width));
+        SampleModel window = type.getSampleModel(width, windowRows);
+        int stride = scanlineStride(window);
+        if (stride <= 0) {
+            return false;
+        }
+        int regionRows = (int) Math.min(height, Integer.MAX_VALUE / stride);
+        ImageReadParam param = reader.getDefaultReadParam();
+        try {
+            for (int y = 0; y < height; y += regionRows) {
+                int rows = Math.min(regionRows, height - y);
+                Rows data = new Rows(type.getColorModel(), window, window.createDataBuffer(), stride, y, rows);
+                param.setSourceRegion(new Rectangle(0, y, width, rows));
+                param.setDestination(new BufferedImage(type.getColorModel(), new Destination(data),
+                        type.getColorModel().isAlphaPremultiplied(), null));
+                reader.read(0, param);
+                data.flush();
+            }
+        } catch (OutOfOrder e) {
+            return false;
+        } catch (IOException e) {
+            // the PNG reader wraps what is thrown while it reads
+            if (e.getCause() instanceof OutOfOrder) {
+                return false;
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    // helper decoding the image a band of rows at a time, each through its own source region
+    private void readBands(ImageReader reader) throws IOException {
+        int rows = Math.max(1, DECODE_PIXELS / width);
+        // decoded bands are copied TILE * TILE pixels at a time
+        int copyRows = Math.max(1, TILE * TILE / width);
+        int[] band = new int[Math.min(copyRows, height) * width];
+        ImageReadParam param = reader.getDefaultReadParam();
+        for (int y = 0; y < height; y += rows) {
+            param.setSourceRegion(new Rectangle(0, y, width, Math.min(rows, height - y)));
+            BufferedImage decoded = reader.read(0, param);
+            for (int j = 0; j < decoded.getHeight(); j += copyRows) {
+                int h = Math.min(copyRows, decoded.getHeight() - j);
+                decoded.getRGB(0, j, width, h, band, 0, width);
+                write(0, y + j, width, h, band, 0, width);
+            }
+        }
+    }
+
+    // helper giving the elements between rows of a sample model, 0 for models not laid out in rows
+    private static int scanlineStride(SampleModel model) {
+        if (model instanceof ComponentSampleModel) {
+            return ((ComponentSampleModel) model).getScanlineStride();
+        } else if (model instanceof MultiPixelPackedSampleModel) {
+            return ((MultiPixelPackedSampleModel) model).getScanlineStride();
+        } else if (model instanceof SinglePixelPackedSampleModel) {
+            return ((SinglePixelPackedSampleModel) model).getScanlineStride();
+        }
+        return 0;
+    }
+
+    /**
+     * Data of a destination image covering a region of rows, of which only a window of rows is kept
+     * When the reader writes past the window, its rows are converted to ARGB and written to the file,
+     * and the window moves on. A write before the window throws OutOfOrder.
+     */
+    private final class Rows extends DataBuffer {
+        private final BufferedImage window;
+        private final WritableRaster raster;
+        private final DataBuffer data;
+        private final int stride, windowRows, top, rows;
+        private final int[] argb;
+
+        /**
+         * first row of the window, relative to top
+         */
+        private int first;
+
+        Rows(ColorModel colorModel, SampleModel window, DataBuffer data, int stride, int top, int rows) {
+            super(data.getDataType(), stride * rows, data.getNumBanks());
+            this.data = data;
+            this.raster = Raster.createWritableRaster(window, data, null);
+            this.window = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+            this.stride = stride;
+            this.windowRows = window.getHeight();
+            this.top = top;
+            this.rows = rows;
+            this.argb = new int[windowRows * width];
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return data.getElem(bank, index(i));
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            data.setElem(bank, index(i), val);
+        }
+
+        // helper giving the index in the window of element i
+        private int index(int i) {
+            return i - (i / stride - row(i / stride)) * stride;
+        }
+
+        // helper moving the window to row y, and giving the row of y in the window
+        int row(int y) {
+            if (y < first) {
+                throw new OutOfOrder();
+            }
+            if (y >= first + windowRows) {
+                flush();
+                first = y / windowRows * windowRows;
+            }
+            return y - first;
+        }
+
+        // helper writing the rows of the window to the file
+        void flush() {
+            int h = Math.min(windowRows, rows - first);
+            window.getRGB(0, 0, width, h, argb, 0, width);
+            write(0, top + first, width, h, argb, 0, width);
+        }
+    }
+
+    /**
+     * Raster of a destination image over Rows
+     * Rasters and pixels set by the reader go to the window a row or a pixel at a time, rather than
+     * an element at a time through the data buffer, which is what the other writes do.
+     */
+    private final class Destination extends WritableRaster {
+        private final Rows rows;
+
+        Destination(Rows rows) {
+            super(rows.raster.getSampleModel().createCompatibleSampleModel(rows.raster.getWidth(), rows.rows), rows,
+                    new Point());
+            this.rows = rows;
+        }
+
+        @Override
+        public void setRect(int dx, int dy, Raster src) {
+            int minX = Math.max(0, src.getMinX() + dx), maxX = Math.min(width, src.getMinX() + src.getWidth() + dx);
+            int minY = Math.max(0, src.getMinY() + dy), maxY = Math.min(rows.rows, src.getMinY() + src.getHeight() + dy);
+            for (int y = minY; y < maxY; y++) {
+                Raster row = src.createChild(minX - dx, y - dy, maxX - minX, 1, minX - dx, y - dy, null);
+                rows.raster.setRect(dx, rows.row(y) - y + dy, row);
+            }
+        }
+
+        @Override
+        public void setPixel(int x, int y, int[] iArray) {
+            rows.raster.setPixel(x, rows.row(y), iArray);
+        }
+
+        @Override
+        public void setDataElements(int x, int y, Object inData) {
+            rows.raster.setDataElements(x, rows.row(y), inData);
+        }
+
+        @Override
+        public WritableRaster createWritableChild(int parentX, int parentY, int w, int h, int childMinX, int childMinY,
+                                                  int[] bandList) {
+            // readers writing the whole raster through a child keep the row by row writes
+            if (parentX == 0 && parentY == 0 && w == width && h == rows.rows && childMinX == 0 && childMinY == 0
+                    && bandList == null) {
+                return this;
+            }
+            return super.createWritableChild(parentX, parentY, w, h, childMinX, childMinY, bandList);
+        }
+    }
+
+    /**
+     * Thrown through the reader when it writes a row the window of Rows has moved past
+     */
+    private static final class OutOfOrder extends RuntimeException {
+        OutOfOrder() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Reads the w x h region at (x, y) into dst, pixel (x + i, y + j) goes to dst[dstOffset + j * dstStride + i]
+     */
+    public void read(int x, int y, int w, int h, int[] dst, int dstOffset, int dstStride) {
+        for (int j = 0; j < h; j++) {
+            IntBuffer row = row(y + j, x);
+            row.get(dst, dstOffset + j * dstStride, w);
+        }
+    }
+
+    /**
+     * Writes src into the w x h region at (x, y), pixel (x + i, y + j) comes from src[srcOffset + j * srcStride + i]
+     */
+    public void write(int x, int y, int w, int h, int[] src, int srcOffset, int srcStride) {
+        for (int j = 0; j < h; j++) {
+            IntBuffer row = row(y + j, x);
+            row.put(src, srcOffset + j * srcStride, w);
+        }
+    }
+
+    /**
+     * Applies a filter tile by tile
+     * Tiles are read with the halo of the filter around them, clipped to the image, so the filter sees
+     * the same neighbors as on the whole image and the same edges where the halo was clipped.
+     * Filters without halo are applied in place.
+     *
+     * @param filter filter whose halo() is not -1
+     * @return filtered image, this if the filter has no halo, a new image to close otherwise
+     */
+    public TiledImage filter(Filter filter) throws IOException {
+        int halo = filter.halo();
+        if (halo < 0) {
+            throw new IllegalArgumentException("filter needs the whole image");
+        }
+        int tile = tile(filter);
+        TiledImage out = halo == 0 ? this : create(width, height);
+        try {
+            BufferedImage padded = null;
+            for (int y = 0; y < height; y += tile) {
+                for (int x = 0; x < width; x += tile) {
+                    int px = Math.max(0, x - halo);
+                    int py = Math.max(0, y - halo);
+                    int pw = Math.min(width, x + tile + halo) - px;
+                    int ph = Math.min(height, y + tile + halo) - py;
+                    // tiles of the same size reuse their image
+                    if (padded == null || padded.getWidth() != pw || padded.getHeight() != ph) {
+                        padded = new BufferedImage(pw, ph, BufferedImage.TYPE_INT_ARGB);
+                    }
+                    int[] data = ((DataBufferInt) padded.getRaster().getDataBuffer()).getData();
+                    read(px, py, pw, ph, data, 0, pw);
+                    filter.applyFilter(padded);
+                    out.write(x, y, Math.min(tile, width - x), Math.min(tile, height - y), data, (y - py) * pw + x - px, pw);
+                }
+            }
+        } catch (RuntimeException e) {
+            if (out != this) {
+                out.close();
+            }
+            throw e;
+        }
+        return out;
+    }
+
+    /**
+     * Side of the tiles filter(filter) runs on, before padding
+     * Tiles are at least twice as wide as the halo, so padding never more than quadruples the pixels
+     * filtered. Their padded side, tile(filter) + 2 * filter.halo(), bounds the pixels filtered at once.
+     *
+     * @param filter filter whose halo() is not -1
+     * @return side of the tiles, a multiple of filter.tileAlign()
+     */
+    public static int tile(Filter filter) {
+        int align = Math.max(1, filter.tileAlign());
+        int side = Math.max(TILE, 2 * filter.halo());
+        return Math.max(align, side / align * align);
+    }
+
+    /**
+     * View of the image for ImageIO writers, which read it a few rows at a time
+     *
+     * @param alpha false to leave the alpha channel out, for formats that do not have one
+     */
+    public RenderedImage asRenderedImage(boolean alpha) {
+        return new View(alpha ? ColorModel.getRGBdefault() : new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF));
+    }
+
+    /**
+     * Releases the scratch file and drops the mappings, which are unmapped once they are garbage collected
+     * The image cannot be read or written after.
+     */
+    @Override
+    public void close() throws IOException {
+        Arrays.fill(chunks, null);
+        channel.close();
+    }
+
+    // helper positioning a view of the chunk holding row y at pixel x
+    private IntBuffer row(int y, int x) {
+        IntBuffer row = chunks[y / chunkRows].duplicate();
+        row.position((y % chunkRows) * width + x);
+        return row;
+    }
+
+    /**
+     * RenderedImage over the file, in bands of TILE rows
+     */
+    private final class View implements RenderedImage {
+        private final ColorModel colorModel;
+
+        View(ColorModel colorModel) {
+            this.colorModel = colorModel;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            int[] data = new int[rect.width * rect.height];
+            read(rect.x, rect.y, rect.width, rect.height, data, 0, rect.width);
+            return Raster.createWritableRaster(colorModel.createCompatibleSampleModel(rect.width, rect.height),
+                    new DataBufferInt(data, data.length), new Point(rect.x, rect.y));
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            int y = tileY * TILE;
+            return getData(new Rectangle(0, y, width, Math.min(TILE, height - y)));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = colorModel.createCompatibleWritableRaster(width, height);
+            }
+            Rectangle rect = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+            raster.setDataElements(0, 0, getData(rect));
+            return raster;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return colorModel.createCompatibleSampleModel(width, TILE);
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (height + TILE - 1) / TILE;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return TILE;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
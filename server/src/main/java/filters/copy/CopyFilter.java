@@ -8,75 +8,414 @@ import java.awt.image.BufferedImage;
 public abstract class CopyFilter extends Filter {
 
     /**
-     * based matrix to apply multiplications on
+     * based matrix to apply multiplications on, null for filters with passes of their own
      */
-    double[][] matrix;
+    final double[][] matrix;
 
     /**
-     * copy to write filtered image to
+     * 1D factors of matrix, matrix[x][y] == xKernel[x] * yKernel[y]
+     * null if matrix is not separable
      */
-    int[] copy;
+    private final double[] xKernel, yKernel;
+
+    private static final int DIRECT = 0, SEPARABLE = 1;
+
+    /**
+     * widest band of a separable matrix, its rows of horizontal results take 3 * d * width floats
+     */
+    private static final int MAX_BAND_WIDTH = 2048;
+
+    /**
+     * matrix in fixed point with shift fractional bits, weights[x * d + y] == matrix[x][y] * 2^shift
+     * null unless the full matrix is evaluated
+     */
+    private final int[] weights;
+    private final int shift;
+    private static final int MAX_SHIFT = 16;
+
+    /**
+     * @param matrix matrix to apply, null for filters overriding applyFilter
+     */
+    protected CopyFilter(double[][] matrix) {
+        this.matrix = matrix;
+        double[][] factors = factor(matrix);
+        xKernel = factors == null ? null : factors[0];
+        yKernel = factors == null ? null : factors[1];
+        shift = matrix == null ? 0 : shift(matrix);
+        weights = matrix == null || xKernel != null ? null : weights(matrix, shift);
+    }
+
+    /**
+     * Image being filtered and the copy the filtered pixels are written to before going back into it
+     */
+    static class Copy extends Context {
+
+        /**
+         * copy to write filtered image to, pixel (x, y) at y * width + x
+         */
+        final int[] copy;
+
+        /**
+         * pass run by filter: DIRECT for the full matrix, SEPARABLE for both passes of a separable matrix
+         */
+        int pass;
+
+        /**
+         * taps[k] is the offset in pixels of the neighbor weighed by weights[k], for rows stride apart
+         */
+        int[] taps;
+
+        /**
+         * @param scratch buffer to write the copy to when it is large enough, or null to allocate
+         */
+        Copy(BufferedImage bi, int[] scratch) {
+            super(bi);
+            int size = bi.getWidth() * bi.getHeight();
+            this.copy = scratch != null && scratch.length >= size ? scratch : new int[size];
+        }
+
+        // helper that moves the filtered copy into the image pixels, row by row
+        void writeBack() {
+            int width = buffer.width;
+            for (int j = 0; j < buffer.height; j++) {
+                System.arraycopy(copy, j * width, pixels, offset + j * stride, width);
+            }
+        }
+    }
 
     @Override
     public void applyFilter(BufferedImage bi) {
-        this.bi = bi;
-        this.copy = new int[bi.getHeight() * bi.getWidth()];
-        fjpool.invoke(new Parallelize(0, bi.getWidth(), 0, bi.getHeight(), this));
-        bi.setRGB(0, 0, bi.getWidth(), bi.getHeight(), copy, 0, bi.getWidth());
+        applyFilter(bi, null);
+    }
+
+    /**
+     * Applies the filter, writing the copy into scratch when it is large enough,
+     * so filters applied one after the other can share a single buffer
+     *
+     * @param bi the image to apply the filter on
+     * @param scratch buffer of at least width * height pixels, or null to allocate
+     */
+    public void applyFilter(BufferedImage bi, int[] scratch) {
+        Copy context = new Copy(bi, scratch);
+        if (xKernel != null) {
+            // rank-1 matrix: one pass along x, then one along y, band by band
+            context.pass = SEPARABLE;
+            parallelize(new Parallelize(0, bi.getWidth(), 0, bi.getHeight(), this, context));
+        } else {
+            if (matrix != null) {
+                context.taps = taps(matrix.length, context.stride);
+            }
+            context.pass = DIRECT;
+            parallelize(new Parallelize(0, bi.getWidth(), 0, bi.getHeight(), this, context));
+        }
+        context.writeBack();
+        context.commit();
+    }
+
+    @Override
+    public int halo() {
+        // neighbors go from -d / 2 to (d - 1) / 2
+        return matrix == null ? 0 : matrix.length / 2;
+    }
+
+    @Override
+    public int cost() {
+        // neighbors read per pixel
+        if (matrix == null) {
+            return 1;
+        }
+        return xKernel != null ? 2 * matrix.length : matrix.length * matrix.length;
     }
 
     @Override
-    protected void filter(int xlow, int xhi, int ylow, int yhi) {
+    public int maxBandWidth() {
+        return xKernel != null ? MAX_BAND_WIDTH : super.maxBandWidth();
+    }
+
+    /**
+     * @return bytes of the rows of horizontal results of a band, one per worker at a time,
+     * 0 unless the matrix is separable
+     */
+    public long rowBytes() {
+        return xKernel != null ? 3L * 4 * matrix.length * MAX_BAND_WIDTH : 0;
+    }
+
+    @Override
+    protected void filter(Context context, int xlow, int xhi, int ylow, int yhi) {
+        Copy c = (Copy) context;
+        if (c.pass == SEPARABLE) {
+            separable(c, xlow, xhi, ylow, yhi);
+            return;
+        }
+        direct(c, xlow, xhi, ylow, yhi);
+    }
+
+    // direct evaluation of the full matrix with fixed point weights
+    // rows are split into border parts, where neighbors are substituted, and an interior part without checks
+    private void direct(Copy c, int xlow, int xhi, int ylow, int yhi) {
+        int width = c.buffer.width;
+        int height = c.buffer.height;
+        int d = matrix.length;
+        int low = -1 * d / 2;
+        int high = (d - 1) / 2;
+        // interior pixels have all their neighbors inside the image
+        int xin = Math.max(xlow, -low), xout = Math.min(xhi, width - high);
+        int yin = Math.max(ylow, -low), yout = Math.min(yhi, height - high);
+        for (int j = ylow; j < yhi; j++) {
+            if (j < yin || j >= yout || xin >= xout) {
+                border(c, xlow, xhi, j);
+            } else {
+                border(c, xlow, xin, j);
+                if (d == 3) {
+                    interior3(c, xin, xout, j);
+                } else {
+                    interior(c, xin, xout, j);
+                }
+                border(c, xout, xhi, j);
+            }
+        }
+    }
+
+    // pixels of row j whose whole neighborhood is inside the image
+    private void interior(Copy c, int xlow, int xhi, int j) {
+        int[] pixels = c.pixels, copy = c.copy;
+        int offset = c.offset, stride = c.stride, width = c.buffer.width;
+        int[] w = weights;
+        int[] t = c.taps;
+        int half = 1 << (shift - 1);
+        for (int i = xlow; i < xhi; i++) {
+            int center = offset + j * stride + i;
+            int r = half, g = half, b = half;
+            for (int k = 0; k < w.length; k++) {
+                int rgb = pixels[center + t[k]];
+                r += ((rgb >> 16) & COLOR) * w[k];
+                g += ((rgb >> 8) & COLOR) * w[k];
+                b += (rgb & COLOR) * w[k];
+            }
+            copy[j * width + i] = (ALPHA_MASK & pixels[center]) | pack(r, g, b);
+        }
+    }
+
+    // unrolled interior of 3x3 matrices, like Outline and Sharp
+    private void interior3(Copy c, int xlow, int xhi, int j) {
+        int[] pixels = c.pixels, copy = c.copy;
+        int offset = c.offset, stride = c.stride, width = c.buffer.width;
+        int[] w = weights;
+        // w[x * 3 + y] weighs neighbor (i + x - 1, j + y - 1)
+        int w00 = w[0], w01 = w[1], w02 = w[2], w10 = w[3], w11 = w[4], w12 = w[5], w20 = w[6], w21 = w[7], w22 = w[8];
+        int half = 1 << (shift - 1);
+        for (int i = xlow; i < xhi; i++) {
+            int mid = offset + j * stride + i;
+            int top = mid - stride;
+            int bot = mid + stride;
+            int p00 = pixels[top - 1], p01 = pixels[mid - 1], p02 = pixels[bot - 1];
+            int p10 = pixels[top], p11 = pixels[mid], p12 = pixels[bot];
+            int p20 = pixels[top + 1], p21 = pixels[mid + 1], p22 = pixels[bot + 1];
+            int r = half
+                    + ((p00 >> 16) & COLOR) * w00 + ((p01 >> 16) & COLOR) * w01 + ((p02 >> 16) & COLOR) * w02
+                    + ((p10 >> 16) & COLOR) * w10 + ((p11 >> 16) & COLOR) * w11 + ((p12 >> 16) & COLOR) * w12
+                    + ((p20 >> 16) & COLOR) * w20 + ((p21 >> 16) & COLOR) * w21 + ((p22 >> 16) & COLOR) * w22;
+            int g = half
+                    + ((p00 >> 8) & COLOR) * w00 + ((p01 >> 8) & COLOR) * w01 + ((p02 >> 8) & COLOR) * w02
+                    + ((p10 >> 8) & COLOR) * w10 + ((p11 >> 8) & COLOR) * w11 + ((p12 >> 8) & COLOR) * w12
+                    + ((p20 >> 8) & COLOR) * w20 + ((p21 >> 8) & COLOR) * w21 + ((p22 >> 8) & COLOR) * w22;
+            int b = half
+                    + (p00 & COLOR) * w00 + (p01 & COLOR) * w01 + (p02 & COLOR) * w02
+                    + (p10 & COLOR) * w10 + (p11 & COLOR) * w11 + (p12 & COLOR) * w12
+                    + (p20 & COLOR) * w20 + (p21 & COLOR) * w21 + (p22 & COLOR) * w22;
+            copy[j * width + i] = (ALPHA_MASK & p11) | pack(r, g, b);
+        }
+    }
+
+    // pixels of row j near the edges, a neighbor outside the image is replaced by the center row/column
+    private void border(Copy c, int xlow, int xhi, int j) {
+        int[] pixels = c.pixels, copy = c.copy;
+        int offset = c.offset, stride = c.stride;
+        int width = c.buffer.width;
+        int height = c.buffer.height;
+        int d = matrix.length;
+        int low = -1 * d / 2;
+        int half = 1 << (shift - 1);
+        for (int i = xlow; i < xhi; i++) {
+            int r = half, g = half, b = half;
+            for (int x = 0; x < d; x++) {
+                int col = i + x + low;
+                if (col <= -1 || col >= width) {
+                    col = i;
+                }
+                for (int y = 0; y < d; y++) {
+                    int row = j + y + low;
+                    if (row <= -1 || row >= height) {
+                        row = j;
+                    }
+                    int rgb = pixels[offset + row * stride + col];
+                    int w = weights[x * d + y];
+                    r += ((rgb >> 16) & COLOR) * w;
+                    g += ((rgb >> 8) & COLOR) * w;
+                    b += (rgb & COLOR) * w;
+                }
+            }
+            copy[j * width + i] = (ALPHA_MASK & pixels[offset + j * stride + i]) | pack(r, g, b);
+        }
+    }
+
+    // helper turning rounded fixed point channel sums into a clamped rgb value
+    private int pack(int r, int g, int b) {
+        r = Math.min(0xFF, Math.max(0, r >> shift));
+        g = Math.min(0xFF, Math.max(0, g >> shift));
+        b = Math.min(0xFF, Math.max(0, b >> shift));
+        return (r << 16) | (g << 8) | b;
+    }
+
+    // separable matrix, sweeping down the band: the horizontal results of row r are kept at (r % d) * w
+    // of three rings of d rows, so they hold the rows the vertical pass of the current row reads
+    private void separable(Copy c, int xlow, int xhi, int ylow, int yhi) {
+        int height = c.buffer.height;
+        int d = yKernel.length;
+        int low = -1 * d / 2;
+        int high = (d - 1) / 2;
+        int w = xhi - xlow;
+        float[] red = new float[d * w], green = new float[d * w], blue = new float[d * w];
+        // next row to run the horizontal pass on, from the first one read by row ylow
+        int next = Math.max(0, ylow + low);
         for (int j = ylow; j < yhi; j++) {
-            for (int i = xlow; i < xhi; i++) {
-                int[][][] mtx = getMatrix(matrix.length, i, j);
-                double r = Math.min(0.0 + 0xFF, Math.max(0.0, mult(matrix.length, mtx[0], matrix)));
-                double g = Math.min(0.0 + 0xFF, Math.max(0.0, mult(matrix.length, mtx[1], matrix)));
-                double b = Math.min(0.0 + 0xFF, Math.max(0.0, mult(matrix.length, mtx[2], matrix)));
-
-                // keep same alpha val, round rgb value
-                int rgb = ((int) (Math.round(r) << 16) + ((int) Math.round(g) << 8) + (int) Math.round(b));
-                copy[j * bi.getWidth() + i] = (ALPHA_MASK & bi.getRGB(i, j)) | rgb;
+            for (int last = Math.min(height - 1, j + high); next <= last; next++) {
+                horizontal(c, xlow, xhi, next, red, green, blue, (next % d) * w);
             }
+            vertical(c, xlow, xhi, j, red, green, blue);
         }
     }
 
-    // helper multiplication method
-    // multiplies corresponding indices and adds them
-    private double mult(int dimension, int[][] a, double[][] b) {
-        double res = 0;
-        for (int i = 0; i < dimension; i++) {
-            for (int j = 0; j < dimension; j++) {
-                res += a[i][j] * b[i][j];
+    // horizontal pass of row j, neighbors outside the image are replaced by the center column
+    // results of column i go at base + i - xlow
+    private void horizontal(Copy c, int xlow, int xhi, int j, float[] red, float[] green, float[] blue, int base) {
+        int[] pixels = c.pixels;
+        int width = c.buffer.width;
+        int low = -1 * xKernel.length / 2;
+        int row = c.offset + j * c.stride;
+        for (int i = xlow; i < xhi; i++) {
+            double r = 0, g = 0, b = 0;
+            for (int x = 0; x < xKernel.length; x++) {
+                int col = i + x + low;
+                if (col <= -1 || col >= width) {
+                    col = i;
+                }
+                int rgb = pixels[row + col];
+                r += ((rgb >> 16) & COLOR) * xKernel[x];
+                g += ((rgb >> 8) & COLOR) * xKernel[x];
+                b += (rgb & COLOR) * xKernel[x];
             }
+            red[base + i - xlow] = (float) r;
+            green[base + i - xlow] = (float) g;
+            blue[base + i - xlow] = (float) b;
         }
-        return res;
-    }
-
-    // helper getter method of neighbors
-    // returns three 3x3 matrices of r g b values of pixels around i, j
-    private int[][][] getMatrix(int dimension, int i, int j) {
-        int[][][] res = new int[3][dimension][dimension];
-        int low = -1 * dimension / 2;
-        int high = (dimension - 1) / 2;
-        for (int x = low; x <= high; x++) {
-            for (int y = low; y <= high; y++) {
-                int rgb;
-                if ((i + x <= -1 || i + x >= bi.getWidth()) && (j + y <= -1 || j + y >= bi.getHeight())) {
-                    rgb = bi.getRGB(i, j) & RGB_MASK;
-                } else if (i + x <= -1 || i + x >= bi.getWidth()) {
-                    rgb = bi.getRGB(i, j + y) & RGB_MASK;
-                } else if (j + y <= -1 || j + y >= bi.getHeight()) {
-                    rgb = bi.getRGB(i + x, j) & RGB_MASK;
-                } else {
-                    rgb = bi.getRGB(i + x, j + y) & RGB_MASK;
+    }
+
+    // vertical pass of row j over the rings of horizontal results, same border rule as the direct path
+    private void vertical(Copy c, int xlow, int xhi, int j, float[] red, float[] green, float[] blue) {
+        int[] pixels = c.pixels, copy = c.copy;
+        int width = c.buffer.width;
+        int height = c.buffer.height;
+        int d = yKernel.length;
+        int low = -1 * d / 2;
+        int w = xhi - xlow;
+        int center = c.offset + j * c.stride;
+        for (int i = xlow; i < xhi; i++) {
+            double r = 0, g = 0, b = 0;
+            for (int y = 0; y < d; y++) {
+                int row = j + y + low;
+                if (row <= -1 || row >= height) {
+                    row = j;
+                }
+                int k = (row % d) * w + i - xlow;
+                r += red[k] * yKernel[y];
+                g += green[k] * yKernel[y];
+                b += blue[k] * yKernel[y];
+            }
+            r = Math.min(0.0 + 0xFF, Math.max(0.0, r));
+            g = Math.min(0.0 + 0xFF, Math.max(0.0, g));
+            b = Math.min(0.0 + 0xFF, Math.max(0.0, b));
+
+            // keep same alpha val, round rgb value
+            int rgb = ((int) (Math.round(r) << 16) + ((int) Math.round(g) << 8) + (int) Math.round(b));
+            copy[j * width + i] = (ALPHA_MASK & pixels[center + i]) | rgb;
+        }
+    }
+
+    // helper that splits matrix into xKernel and yKernel when it has rank 1, null otherwise
+    private static double[][] factor(double[][] matrix) {
+        if (matrix == null || matrix.length < 2) {
+            return null;
+        }
+        int d = matrix.length;
+        // largest entry is the most stable pivot
+        int p = 0, q = 0;
+        for (int x = 0; x < d; x++) {
+            for (int y = 0; y < d; y++) {
+                if (Math.abs(matrix[x][y]) > Math.abs(matrix[p][q])) {
+                    p = x;
+                    q = y;
+                }
+            }
+        }
+        double pivot = matrix[p][q];
+        if (pivot == 0) {
+            return null;
+        }
+        double[] xk = new double[d];
+        double[] yk = new double[d];
+        for (int i = 0; i < d; i++) {
+            xk[i] = matrix[i][q];
+            yk[i] = matrix[p][i] / pivot;
+        }
+        double eps = Math.abs(pivot) * 1e-9;
+        for (int x = 0; x < d; x++) {
+            for (int y = 0; y < d; y++) {
+                if (Math.abs(matrix[x][y] - xk[x] * yk[y]) > eps) {
+                    return null;
                 }
-                res[0][x - low][y - low] = (rgb >> 16) & COLOR;
-                res[1][x - low][y - low] = (rgb >> 8) & COLOR;
-                res[2][x - low][y - low] = rgb & COLOR;
             }
         }
-        return res;
+        return new double[][]{xk, yk};
     }
 
+    // helper choosing the fractional bits of the fixed point weights of matrix
+    // uses the most bits for which no channel sum can overflow
+    private static int shift(double[][] matrix) {
+        double total = 0;
+        for (double[] row : matrix) {
+            for (double v : row) {
+                total += Math.abs(v);
+            }
+        }
+        int shift = MAX_SHIFT;
+        while (shift > 1 && (total + 1) * 0xFF * (1 << shift) >= Integer.MAX_VALUE / 2) {
+            shift--;
+        }
+        return shift;
+    }
+
+    // helper converting matrix into fixed point weights with shift fractional bits
+    private static int[] weights(double[][] matrix, int shift) {
+        int d = matrix.length;
+        int[] w = new int[d * d];
+        for (int x = 0; x < d; x++) {
+            for (int y = 0; y < d; y++) {
+                w[x * d + y] = (int) Math.round(matrix[x][y] * (1 << shift));
+            }
+        }
+        return w;
+    }
+
+    // helper computing the offsets in pixels of the neighbors of a d x d matrix, for rows stride apart
+    private static int[] taps(int d, int stride) {
+        int low = -1 * d / 2;
+        int[] t = new int[d * d];
+        for (int x = 0; x < d; x++) {
+            for (int y = 0; y < d; y++) {
+                t[x * d + y] = (y + low) * stride + (x + low);
+            }
+        }
+        return t;
+    }
 }
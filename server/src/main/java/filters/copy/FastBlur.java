@@ -0,0 +1,203 @@
+package filters.copy;
+
+import filters.Parallelize;
+
+import java.awt.image.BufferedImage;
+
+public abstract class FastBlur extends CopyFilter {
+
+    /**
+     * largest radius accepted, in pixels
+     */
+    public static final int MAX_RADIUS = 2000;
+
+    /**
+     * least columns of a band of the vertical pass, a few cache lines of every row
+     */
+    private static final int COLUMNS = 64;
+
+    /**
+     * radii of the box passes, each applied horizontally then vertically
+     */
+    private final int[] radii;
+
+    /**
+     * @param radii radii of the box passes
+     */
+    FastBlur(int[] radii) {
+        super(null);
+        this.radii = radii;
+    }
+
+    /**
+     * Image being blurred, with the buffers read and written by the current pass and its radius
+     * input pixel (i, j) is at in[inOffset + j * inStride + i], output pixel at out[j * width + i]
+     */
+    private static final class Blur extends Copy {
+        int[] in, out;
+        int inOffset, inStride;
+        int radius;
+        boolean vertical;
+
+        Blur(BufferedImage bi, int[] scratch) {
+            super(bi, scratch);
+        }
+    }
+
+    @Override
+    public void applyFilter(BufferedImage bi, int[] scratch) {
+        Blur context = new Blur(bi, scratch);
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        int[] tmp = new int[width * height];
+
+        // horizontal passes go from the source to tmp, vertical passes from tmp to copy
+        context.in = context.pixels;
+        context.inOffset = context.offset;
+        context.inStride = context.stride;
+        for (int r : radii) {
+            context.radius = r;
+            context.out = tmp;
+            context.vertical = false;
+            // bands of rows, each row swept once from left to right
+            parallelize(new Parallelize(0, width, 0, height, this, context));
+
+            context.in = tmp;
+            context.inOffset = 0;
+            context.inStride = width;
+            context.out = context.copy;
+            context.vertical = true;
+            // bands of columns, each swept once from top to bottom a row of the band at a time
+            parallelize(Parallelize.columns(0, width, 0, height, this, context, COLUMNS));
+
+            context.in = context.copy;
+        }
+        context.writeBack();
+        context.commit();
+    }
+
+    @Override
+    public int halo() {
+        // every pass widens the reach by its radius
+        int halo = 0;
+        for (int r : radii) {
+            halo += r;
+        }
+        return halo;
+    }
+
+    @Override
+    public int cost() {
+        // running sums do the same work per pixel whatever the radius
+        return 2;
+    }
+
+    @Override
+    protected void filter(Context context, int xlow, int xhi, int ylow, int yhi) {
+        Blur blur = (Blur) context;
+        if (blur.vertical) {
+            vertical(blur, xlow, xhi);
+        } else {
+            horizontal(blur, ylow, yhi);
+        }
+    }
+
+    // running sum along the rows ylow to yhi
+    // neighbors outside the image are replaced by the center pixel, like the other copy filters
+    private void horizontal(Blur blur, int ylow, int yhi) {
+        int[] in = blur.in, out = blur.out;
+        int inOffset = blur.inOffset, inStride = blur.inStride, radius = blur.radius;
+        int width = blur.buffer.width;
+        int n = 2 * radius + 1;
+        for (int j = ylow; j < yhi; j++) {
+            int row = inOffset + j * inStride;
+            int r = 0, g = 0, b = 0;
+            for (int i = 0; i <= radius && i < width; i++) {
+                int rgb = in[row + i];
+                r += (rgb >> 16) & COLOR;
+                g += (rgb >> 8) & COLOR;
+                b += rgb & COLOR;
+            }
+            for (int i = 0; i < width; i++) {
+                int argb = in[row + i];
+                int missing = n - (Math.min(i + radius, width - 1) - Math.max(i - radius, 0) + 1);
+                int red = (r + missing * ((argb >> 16) & COLOR) + n / 2) / n;
+                int green = (g + missing * ((argb >> 8) & COLOR) + n / 2) / n;
+                int blue = (b + missing * (argb & COLOR) + n / 2) / n;
+                out[j * width + i] = (argb & ALPHA_MASK) | (red << 16) | (green << 8) | blue;
+
+                // slide the window one pixel to the right
+                if (i + radius + 1 < width) {
+                    int rgb = in[row + i + radius + 1];
+                    r += (rgb >> 16) & COLOR;
+                    g += (rgb >> 8) & COLOR;
+                    b += rgb & COLOR;
+                }
+                if (i - radius >= 0) {
+                    int rgb = in[row + i - radius];
+                    r -= (rgb >> 16) & COLOR;
+                    g -= (rgb >> 8) & COLOR;
+                    b -= rgb & COLOR;
+                }
+            }
+        }
+    }
+
+    // running sum along the columns xlow to xhi, walking the band row by row
+    private void vertical(Blur blur, int xlow, int xhi) {
+        int[] in = blur.in, out = blur.out;
+        int inOffset = blur.inOffset, inStride = blur.inStride, radius = blur.radius;
+        int width = blur.buffer.width;
+        int height = blur.buffer.height;
+        int n = 2 * radius + 1;
+        int cols = xhi - xlow;
+        int[] r = new int[cols];
+        int[] g = new int[cols];
+        int[] b = new int[cols];
+        for (int j = 0; j <= radius && j < height; j++) {
+            int row = inOffset + j * inStride + xlow;
+            for (int c = 0; c < cols; c++) {
+                int rgb = in[row + c];
+                r[c] += (rgb >> 16) & COLOR;
+                g[c] += (rgb >> 8) & COLOR;
+                b[c] += rgb & COLOR;
+            }
+        }
+        for (int j = 0; j < height; j++) {
+            int row = inOffset + j * inStride + xlow;
+            int missing = n - (Math.min(j + radius, height - 1) - Math.max(j - radius, 0) + 1);
+            for (int c = 0; c < cols; c++) {
+                int argb = in[row + c];
+                int red = (r[c] + missing * ((argb >> 16) & COLOR) + n / 2) / n;
+                int green = (g[c] + missing * ((argb >> 8) & COLOR) + n / 2) / n;
+                int blue = (b[c] + missing * (argb & COLOR) + n / 2) / n;
+                out[j * width + xlow + c] = (argb & ALPHA_MASK) | (red << 16) | (green << 8) | blue;
+            }
+
+            // slide the window one row down
+            if (j + radius + 1 < height) {
+                int next = inOffset + (j + radius + 1) * inStride + xlow;
+                for (int c = 0; c < cols; c++) {
+                    int rgb = in[next + c];
+                    r[c] += (rgb >> 16) & COLOR;
+                    g[c] += (rgb >> 8) & COLOR;
+                    b[c] += rgb & COLOR;
+                }
+            }
+            if (j - radius >= 0) {
+                int last = inOffset + (j - radius) * inStride + xlow;
+                for (int c = 0; c < cols; c++) {
+                    int rgb = in[last + c];
+                    r[c] -= (rgb >> 16) & COLOR;
+                    g[c] -= (rgb >> 8) & COLOR;
+                    b[c] -= rgb & COLOR;
+                }
+            }
+        }
+    }
+
+    // helper clamping a requested radius to the supported range
+    static int clampRadius(int radius) {
+        return Math.max(1, Math.min(MAX_RADIUS, radius));
+    }
+}
@@ -0,0 +1,7 @@
+package filters.copy;
+
+public class FastBoxBlur extends FastBlur {
+    public FastBoxBlur(int radius){
+        super(new int[]{clampRadius(radius)});
+    }
+}
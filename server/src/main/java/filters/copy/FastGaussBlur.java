@@ -0,0 +1,32 @@
+package filters.copy;
+
+public class FastGaussBlur extends FastBlur {
+
+    /**
+     * number of box passes approximating the gaussian
+     */
+    private static final int PASSES = 3;
+
+    public FastGaussBlur(int radius){
+        // the radius covers 3 standard deviations, like the binomial kernels of GaussBlur
+        super(boxRadii(clampRadius(radius) / 3.0, PASSES));
+    }
+
+    // helper computing the box radii whose successive passes have the variance of a gaussian of deviation sigma
+    private static int[] boxRadii(double sigma, int n) {
+        double ideal = Math.sqrt(12 * sigma * sigma / n + 1);
+        int lower = (int) Math.floor(ideal);
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+        double mIdeal = (12 * sigma * sigma - n * lower * lower - 4.0 * n * lower - 3.0 * n) / (-4.0 * lower - 4);
+        int m = (int) Math.round(mIdeal);
+
+        int[] res = new int[n];
+        for (int i = 0; i < n; i++) {
+            res[i] = ((i < m ? lower : upper) - 1) / 2;
+        }
+        return res;
+    }
+}
@@ -2,11 +2,11 @@ package filters.copy;
 
 public class GaussBlur extends CopyFilter {
     public GaussBlur(int intensity){
-        this.matrix = gaussBuilder(intensity / 10 + 1);
+        super(gaussBuilder(intensity / 10 + 1));
     }
 
     // helper base matrix constructor
-    private double[][] gaussBuilder(int dimension) {
+    private static double[][] gaussBuilder(int dimension) {
         int[] temp = new int[dimension];
         temp[0] = 1;
         for(int i = 1; i < dimension; i++){
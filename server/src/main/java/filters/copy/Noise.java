@@ -1,43 +1,233 @@
 package filters.copy;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import filters.Parallelize;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
 
 public class Noise extends CopyFilter {
 
+    /**
+     * largest radius of the median window
+     */
+    public static final int MAX_RADIUS = 15;
+
+    /**
+     * widest band, the column histograms of a band take (width + 2 * radius) * 272 ints per channel
+     */
+    private static final int MAX_BAND_WIDTH = 512;
+
+    /**
+     * median is taken over the (2 * radius + 1) square window around a pixel, based on intensity
+     */
+    private final int radius;
+
+    public Noise(int intensity) {
+        super(null);
+        this.radius = Math.max(1, Math.min(MAX_RADIUS, 1 + intensity * (MAX_RADIUS - 1) / 100));
+    }
+
+    @Override
+    public void applyFilter(BufferedImage bi, int[] scratch) {
+        Copy context = new Copy(bi, scratch);
+        parallelize(new Parallelize(0, bi.getWidth(), 0, bi.getHeight(), this, context));
+        context.writeBack();
+        context.commit();
+    }
+
+    @Override
+    public int halo() {
+        return radius;
+    }
+
+    @Override
+    public int maxBandWidth() {
+        return MAX_BAND_WIDTH;
+    }
+
+    /**
+     * @return bytes of the histograms of the three channels of a band, one per worker at a time
+     */
+    public long histogramBytes() {
+        return 3L * 4 * (MAX_BAND_WIDTH + 2 * radius) * (256 + 16);
+    }
+
+    @Override
+    public int cost() {
+        // three sliding histograms per pixel, plus building the column histograms of every band
+        return 48;
+    }
+
+    // median of every channel over the window clipped to the image
+    // column histograms slide down the rows, the window histogram slides right along the columns (Perreault)
     @Override
-    protected void filter(int xlow, int xhi, int ylow, int yhi) {
+    protected void filter(Context context, int xlow, int xhi, int ylow, int yhi) {
+        Copy c = (Copy) context;
+        int[] pixels = c.pixels, copy = c.copy;
+        int offset = c.offset, stride = c.stride;
+        int width = c.buffer.width;
+        int height = c.buffer.height;
+        // columns whose histograms are needed by the task, windows are in coordinates relative to clow
+        int clow = Math.max(0, xlow - radius);
+        int chigh = Math.min(width, xhi + radius);
+        Median red = new Median(chigh - clow);
+        Median green = new Median(chigh - clow);
+        Median blue = new Median(chigh - clow);
+
+        for (int y = Math.max(0, ylow - radius); y <= Math.min(height - 1, ylow + radius); y++) {
+            addRow(c, y, clow, chigh, 1, red, green, blue);
+        }
         for (int j = ylow; j < yhi; j++) {
-            for (int i = xlow; i < xhi; i++) {
-                List<Integer> r = new ArrayList<>();
-                List<Integer> g = new ArrayList<>();
-                List<Integer> b = new ArrayList<>();
-                for (int x = -1; x <= 1; x++) {
-                    for (int y = -1; y <= 1; y++) {
-                        if (i + x != -1 && i + x != bi.getWidth() && j + y != -1 && j + y != bi.getHeight()) {
-                            int rgb = bi.getRGB(i + x, j) & RGB_MASK;
-                            r.add((rgb >> 16) & COLOR);
-                            g.add((rgb >> 8) & COLOR);
-                            b.add((rgb & COLOR));
-                        }
-                    }
+            if (j > ylow) {
+                if (j - radius - 1 >= 0) {
+                    addRow(c, j - radius - 1, clow, chigh, -1, red, green, blue);
                 }
-                Collections.sort(r);
-                Collections.sort(g);
-                Collections.sort(b);
-                int med = r.size() / 2;
-                int rmed = r.get(med);
-                int gmed = g.get(med);
-                int bmed = b.get(med);
-                if (r.size() % 2 == 0) {
-                    rmed = (rmed + r.get(med - 1)) / 2;
-                    gmed = (gmed + g.get(med - 1)) / 2;
-                    bmed = (bmed + b.get(med - 1)) / 2;
+                if (j + radius < height) {
+                    addRow(c, j + radius, clow, chigh, 1, red, green, blue);
                 }
-                // keep same alpha val, round rgb value
+            }
+            int rows = Math.min(height - 1, j + radius) - Math.max(0, j - radius) + 1;
+            red.reset();
+            green.reset();
+            blue.reset();
+            for (int i = xlow; i < xhi; i++) {
+                int left = Math.max(0, i - radius) - clow;
+                int right = Math.min(width - 1, i + radius) - clow;
+                red.window(left, right);
+                green.window(left, right);
+                blue.window(left, right);
+
+                int n = rows * (right - left + 1);
+                int med = n / 2;
+                int rmed = red.select(med);
+                int gmed = green.select(med);
+                int bmed = blue.select(med);
+                if (n % 2 == 0) {
+                    rmed = (rmed + red.select(med - 1)) / 2;
+                    gmed = (gmed + green.select(med - 1)) / 2;
+                    bmed = (bmed + blue.select(med - 1)) / 2;
+                }
+                // keep same alpha val
                 int rgb = (rmed << 16) + (gmed << 8) + bmed;
-                copy[j * bi.getWidth() + i] = (ALPHA_MASK & bi.getRGB(i, j)) | rgb;
+                copy[j * width + i] = (ALPHA_MASK & pixels[offset + j * stride + i]) | rgb;
+            }
+        }
+    }
+
+    // helper adding (sign 1) or removing (sign -1) row y to the column histograms
+    private void addRow(Copy c, int y, int clow, int chigh, int sign, Median red, Median green, Median blue) {
+        int[] pixels = c.pixels;
+        int row = c.offset + y * c.stride;
+        for (int x = clow; x < chigh; x++) {
+            int rgb = pixels[row + x];
+            red.column(x - clow, (rgb >> 16) & COLOR, sign);
+            green.column(x - clow, (rgb >> 8) & COLOR, sign);
+            blue.column(x - clow, rgb & COLOR, sign);
+        }
+    }
+
+    /**
+     * Sliding histograms of one channel
+     * Values are split into 16 coarse bins of 16 fine bins. The coarse window histogram is updated
+     * for every pixel, a fine bin of the window only when the median falls into it.
+     */
+    private static class Median {
+
+        /**
+         * per column histograms, colFine[c * 256 + v] and colCoarse[c * 16 + v / 16]
+         */
+        private final int[] colFine, colCoarse;
+
+        /**
+         * window histograms, fine[b * 16 + k] covers the columns lo[b] to hi[b]
+         */
+        private final int[] coarse = new int[16];
+        private final int[] fine = new int[256];
+        private final int[] lo = new int[16];
+        private final int[] hi = new int[16];
+
+        /**
+         * columns covered by coarse
+         */
+        private int left, right;
+
+        Median(int columns) {
+            colFine = new int[columns * 256];
+            colCoarse = new int[columns * 16];
+        }
+
+        // adds sign occurrences of value v to column c
+        void column(int c, int v, int sign) {
+            colFine[c * 256 + v] += sign;
+            colCoarse[c * 16 + (v >> 4)] += sign;
+        }
+
+        // empties the window, called before a new row
+        void reset() {
+            Arrays.fill(coarse, 0);
+            Arrays.fill(hi, -1);
+            Arrays.fill(lo, 0);
+            left = 0;
+            right = -1;
+        }
+
+        // moves the coarse window to the columns l to r, windows only move right within a row
+        void window(int l, int r) {
+            for (int c = Math.max(right + 1, l); c <= r; c++) {
+                for (int b = 0; b < 16; b++) {
+                    coarse[b] += colCoarse[c * 16 + b];
+                }
+            }
+            for (int c = left; c < l && c <= right; c++) {
+                for (int b = 0; b < 16; b++) {
+                    coarse[b] -= colCoarse[c * 16 + b];
+                }
+            }
+            left = l;
+            right = r;
+        }
+
+        // k-th smallest value (from 0) in the window
+        int select(int k) {
+            int b = 0;
+            while (k >= coarse[b]) {
+                k -= coarse[b];
+                b++;
+            }
+            refresh(b);
+            int v = b * 16;
+            while (k >= fine[v]) {
+                k -= fine[v];
+                v++;
+            }
+            return v;
+        }
+
+        // brings fine bin b up to the current window
+        private void refresh(int b) {
+            if (lo[b] == left && hi[b] == right) {
+                return;
+            }
+            int base = b * 16;
+            if (hi[b] < left) {
+                // no overlap with the window, rebuild
+                Arrays.fill(fine, base, base + 16, 0);
+                addColumns(b, left, right, 1);
+            } else {
+                addColumns(b, lo[b], left - 1, -1);
+                addColumns(b, hi[b] + 1, right, 1);
+            }
+            lo[b] = left;
+            hi[b] = right;
+        }
+
+        private void addColumns(int b, int from, int to, int sign) {
+            int base = b * 16;
+            for (int c = from; c <= to; c++) {
+                int col = c * 256 + base;
+                for (int v = 0; v < 16; v++) {
+                    fine[base + v] += sign * colFine[col + v];
+                }
             }
         }
     }
@@ -2,6 +2,6 @@ package filters.copy;
 
 public class Outline extends CopyFilter {
     public Outline(){
-        this.matrix = new double[][]{{-1, -1, -1}, {-1, 8, -1}, {-1, -1, -1}};
+        super(new double[][]{{-1, -1, -1}, {-1, 8, -1}, {-1, -1, -1}});
     }
 }
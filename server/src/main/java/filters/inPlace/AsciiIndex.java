@@ -0,0 +1,106 @@
+package filters.inPlace;
+
+import filters.Filter;
+
+/**
+ * Reference glyphs of Asciify as 64 bit masks, bit y * SIDE + x for pixel (x, y)
+ * A block thresholded to black and white differs from a glyph where the block is white and the glyph
+ * pixel is not, or the block is black and the glyph pixel is not, so matching is a few bitwise
+ * operations and a bitCount per glyph.
+ */
+public final class AsciiIndex {
+
+    /**
+     * side of a glyph and of a block
+     */
+    static final int SIDE = Asciify.LENGTH;
+
+    /**
+     * number of glyphs
+     */
+    final int size;
+
+    /**
+     * pixels of glyph k that are exactly white, and exactly black
+     */
+    private final long[] white, black;
+
+    /**
+     * pixels of the glyphs, glyph k at k * SIDE * SIDE
+     */
+    private final int[] paint;
+
+    /**
+     * @param argb pixels of the glyphs, glyph k at k * SIDE * SIDE, in the order ties are broken
+     * @param white masks of the white pixels of every glyph
+     * @param black masks of the black pixels of every glyph
+     */
+    AsciiIndex(int[] argb, long[] white, long[] black) {
+        size = white.length;
+        this.white = white.clone();
+        this.black = black.clone();
+        this.paint = argb.clone();
+    }
+
+    /**
+     * Computes the masks of glyphs
+     *
+     * @param argb pixels of the glyphs, glyph k at k * SIDE * SIDE
+     * @param white receives the pixels of glyph k that are exactly white
+     * @param black receives the pixels of glyph k that are exactly black
+     */
+    static void masks(int[] argb, long[] white, long[] black) {
+        for (int k = 0; k < white.length; k++) {
+            white[k] = 0;
+            black[k] = 0;
+            for (int p = 0; p < SIDE * SIDE; p++) {
+                int rgb = argb[k * SIDE * SIDE + p] & Filter.RGB_MASK;
+                if (rgb == Filter.RGB_MASK) {
+                    white[k] |= 1L << p;
+                } else if (rgb == 0) {
+                    black[k] |= 1L << p;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the glyph with the fewest pixels differing from a thresholded block
+     *
+     * @param block pixels of the block that are white, bit y * SIDE + x
+     * @param valid pixels inside the image, all bits for a whole block
+     * @return index of the nearest glyph, -1 if there are none, which Asciify does not allow
+     */
+    int nearest(long block, long valid) {
+        int best = -1;
+        int bestDistance = SIDE * SIDE + 1;
+        for (int k = 0; k < size; k++) {
+            int distance = Long.bitCount(valid & ((block & ~white[k]) | (~block & ~black[k])));
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Copies the pixels of glyph k over the block at (x0, y0) of the image, clipped to width x height
+     *
+     * @param ink color replacing the black pixels of the glyph, or 0 to keep them
+     */
+    void paint(int k, int ink, int[] pixels, int offset, int stride, int x0, int y0, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            int row = offset + (y0 + y) * stride + x0;
+            System.arraycopy(paint, k * SIDE * SIDE + y * SIDE, pixels, row, width);
+            if (ink != 0) {
+                long bits = black[k] >>> (y * SIDE);
+                for (int x = 0; x < width; x++) {
+                    if ((bits >>> x & 1) != 0) {
+                        pixels[row + x] = ink;
+                    }
+                }
+            }
+        }
+    }
+}
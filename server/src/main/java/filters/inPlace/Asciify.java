@@ -4,9 +4,6 @@ import filters.Filter;
 import filters.Parallelize;
 
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
 
 public class Asciify extends Filter {
 
@@ -16,80 +13,87 @@ public class Asciify extends Filter {
     public static final int LENGTH = 8;
 
     /**
-     * set of reference asciis
+     * reference asciis, as bit masks
      */
-    private final Set<BufferedImage> asciis;
+    private final AsciiIndex index;
 
     /**
      * true for color, false for black+white
      */
     private final boolean ansi;
 
-    public Asciify(Set<BufferedImage> asciis, boolean ansi){
-        this.asciis = asciis;
+    /**
+     * @param index reference asciis, e.g. GlyphAtlas.load().asciis()
+     * @param ansi true for color, false for black+white
+     * @throws IllegalArgumentException if the index has no glyphs
+     */
+    public Asciify(AsciiIndex index, boolean ansi){
+        if (index.size == 0) {
+            throw new IllegalArgumentException("no glyphs to match blocks with");
+        }
+        this.index = index;
         this.ansi = ansi;
     }
 
+    @Override
+    public int tileAlign() {
+        return LENGTH;
+    }
+
+    @Override
+    public int cost() {
+        // the range is in blocks, thresholding a block then a few operations per glyph
+        return 2 * LENGTH * LENGTH + 4 * index.size;
+    }
+
     @Override
     public void applyFilter(BufferedImage bi) {
-        this.bi = bi;
-        fjpool.invoke(new Parallelize(0, (bi.getWidth() + 7) / 8, 0, (bi.getHeight() + 7) / 8, this, 16));
+        Context context = new Context(bi);
+        parallelize(new Parallelize(0, (bi.getWidth() + LENGTH - 1) / LENGTH, 0, (bi.getHeight() + LENGTH - 1) / LENGTH,
+                this, context));
+        context.commit();
     }
 
     @Override
-    public void filter(int xlow, int xhi, int ylow, int yhi) {
-        for (int x = xlow; x < xhi; x++) {
-            for (int y = ylow; y < yhi; y++) {
-                Map<BufferedImage, Integer> distance = new HashMap<>();
-                for (BufferedImage image : asciis) {
-                    distance.put(image, 0);
-                }
+    public void filter(Context context, int xlow, int xhi, int ylow, int yhi) {
+        int[] pixels = context.pixels;
+        int offset = context.offset, stride = context.stride;
+        BufferedImage bi = context.bi;
+        for (int y = ylow; y < yhi; y++) {
+            for (int x = xlow; x < xhi; x++) {
+                int x0 = x * LENGTH, y0 = y * LENGTH;
+                int w = Math.min(LENGTH, bi.getWidth() - x0);
+                int h = Math.min(LENGTH, bi.getHeight() - y0);
 
-                // get distances by comparing number of differing b/w pixel values for every ascii
-                int[] colors = new int[3];
-                for (int i = x * LENGTH; i < (x + 1) * LENGTH && i < bi.getWidth(); i++) {
-                    for (int j = y * LENGTH; j < (y + 1) * LENGTH && j < bi.getHeight(); j++) {
-                        int argb = bi.getRGB(i, j);
+                // threshold the block into a mask of its white pixels, bit j * LENGTH + i
+                long block = 0, valid = 0;
+                int reds = 0, greens = 0, blues = 0;
+                for (int j = 0; j < h; j++) {
+                    int row = offset + (y0 + j) * stride + x0;
+                    for (int i = 0; i < w; i++) {
+                        int argb = pixels[row + i];
                         int red = COLOR & (argb >> 16);
                         int green = COLOR & (argb >> 8);
                         int blue = COLOR & argb;
-                        int newColor = (red + green + blue) / 3 >= 128 ? 0xFFFFFF : 0;
-
-                        if (ansi) {
-                            colors[0] += red;
-                            colors[1] += green;
-                            colors[2] += blue;
+                        long bit = 1L << (j * LENGTH + i);
+                        valid |= bit;
+                        if ((red + green + blue) / 3 >= 128) {
+                            block |= bit;
                         }
-                        for (BufferedImage image : asciis) {
-                            int color = image.getRGB(i % (LENGTH), j % (LENGTH));
-                            if ((color & RGB_MASK) != newColor) {
-                                distance.put(image, distance.get(image) + 1);
-                            }
+                        if (ansi) {
+                            reds += red;
+                            greens += green;
+                            blues += blue;
                         }
                     }
                 }
-                BufferedImage ascii = null;
-                int blocks = LENGTH * LENGTH;
-                int minDist = blocks + 1;
-                for (BufferedImage image : distance.keySet()) {
-                    if (distance.get(image) < minDist) {
-                        minDist = distance.get(image);
-                        ascii = image;
-                    }
-                }
+                int ascii = index.nearest(block, valid);
 
-                assert ascii != null;
+                assert ascii >= 0;
                 // convert 8x8 block into ascii
-                int ansiColor = (0xFF << 24) | ((colors[0] / blocks) << 16) | ((colors[1] / blocks) << 8) | (colors[2] / blocks);
-                for (int i = x * LENGTH; i < (x + 1) * LENGTH && i < bi.getWidth(); i++) {
-                    for (int j = y * LENGTH; j < (y + 1) * LENGTH && j < bi.getHeight(); j++) {
-                        int newColor = ascii.getRGB(i % (LENGTH), j % (LENGTH));
-                        if (ansi && (newColor & RGB_MASK) == 0x0) {
-                            newColor = ansiColor;
-                        }
-                        bi.setRGB(i, j, newColor);
-                    }
-                }
+                int blocks = LENGTH * LENGTH;
+                int ansiColor = (0xFF << 24) | ((reds / blocks) << 16) | ((greens / blocks) << 8) | (blues / blocks);
+                index.paint(ascii, ansi ? ansiColor : 0, pixels, offset, stride, x0, y0, w, h);
             }
         }
     }
@@ -13,15 +13,28 @@ public class BlackWhite extends InPlaceFilter{
         this.threshold = (int) (128 - (intensity * 1.27));
     }
 
-    public void filter(int xlow, int xhi, int ylow, int yhi) {
-        for (int i = xlow; i < xhi; i++) {
-            for (int j = ylow; j < yhi; j++) {
-                int argb = bi.getRGB(i, j);
-                int red = Filter.COLOR & (argb >> 16);
-                int green = Filter.COLOR & (argb >> 8);
-                int blue = Filter.COLOR & argb;
-                bi.setRGB(i, j, ((argb & Filter.ALPHA_MASK) | ((red + green + blue) / 3 >= threshold ? 0xFFFFFF : 0x0)));
+    public void filter(Context context, int xlow, int xhi, int ylow, int yhi) {
+        int[] pixels = context.pixels;
+        int offset = context.offset, stride = context.stride;
+        VectorKernels simd = VectorKernels.INSTANCE;
+        for (int j = ylow; j < yhi; j++) {
+            int row = offset + j * stride;
+            if (simd != null) {
+                simd.blackWhite(pixels, row + xlow, row + xhi, threshold);
+                continue;
+            }
+            for (int i = xlow; i < xhi; i++) {
+                int idx = row + i;
+                pixels[idx] = apply(pixels[idx]);
             }
         }
     }
+
+    @Override
+    public int apply(int argb) {
+        int red = Filter.COLOR & (argb >> 16);
+        int green = Filter.COLOR & (argb >> 8);
+        int blue = Filter.COLOR & argb;
+        return ((argb & Filter.ALPHA_MASK) | ((red + green + blue) / 3 >= threshold ? 0xFFFFFF : 0x0));
+    }
 }
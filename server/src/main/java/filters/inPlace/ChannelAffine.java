@@ -0,0 +1,79 @@
+package filters.inPlace;
+
+/**
+ * Integer affine form of a channel filter, for the vector kernels
+ * Channel c of value v becomes clamp(add[c] + trunc((v - center[c]) * mul / 2^shift)) to 0..255,
+ * with the division rounding toward zero. A form is only built when it gives the same value
+ * as the filter for every channel and value, so it can replace the lookup tables exactly.
+ */
+public final class ChannelAffine {
+
+    /**
+     * fixed point multiplier and its fractional bits
+     */
+    public final int mul, shift;
+
+    /**
+     * per channel values, red, green then blue
+     */
+    public final int[] center, add;
+
+    private ChannelAffine(int mul, int shift, int[] center, int[] add) {
+        this.mul = mul;
+        this.shift = shift;
+        this.center = center;
+        this.add = add;
+    }
+
+    /**
+     * Finds the fixed point form of clamp(add + (int) ((v - center) * mult))
+     *
+     * @param mult multiplier of the filter
+     * @param center values of red, green and blue subtracted before multiplying
+     * @param add values of red, green and blue added after
+     * @param filter tables of the filter the form must agree with
+     * @return exact form of filter, null if none was found
+     */
+    static ChannelAffine of(double mult, int[] center, int[] add, ChannelLut filter) {
+        // largest shift for which no product can overflow
+        int shift = 16;
+        while (shift > 0 && 255 * Math.abs(mult) * (1 << shift) >= 1 << 30) {
+            shift--;
+        }
+        if (255 * Math.abs(mult) * (1 << shift) >= 1 << 30) {
+            return null;
+        }
+        double scaled = mult * (1 << shift);
+        for (double m : new double[]{Math.rint(scaled), Math.floor(scaled), Math.ceil(scaled)}) {
+            ChannelAffine affine = new ChannelAffine((int) m, shift, center, add);
+            if (affine.matches(filter)) {
+                return affine;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param channel 0 for red, 1 for green, 2 for blue
+     * @param v channel value
+     * @return new channel value
+     */
+    public int apply(int channel, int v) {
+        int p = (v - center[channel]) * mul;
+        int t = p >= 0 ? p >> shift : -((-p) >> shift);
+        return Math.max(0, Math.min(0xFF, add[channel] + t));
+    }
+
+    // helper checking every channel and value against the tables of the filter
+    private boolean matches(ChannelLut filter) {
+        int[] shifts = {ChannelFilter.RED, ChannelFilter.GREEN, ChannelFilter.BLUE};
+        for (int c = 0; c < 3; c++) {
+            for (int v = 0; v < 256; v++) {
+                if (apply(c, v) != filter.get(shifts[c], v)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+package filters.inPlace;
+
+public abstract class ChannelFilter extends InPlaceFilter {
+
+    /**
+     * shifts of the channels in a packed ARGB value
+     */
+    public static final int RED = 16, GREEN = 8, BLUE = 0;
+
+    /**
+     * lookup tables equivalent to this filter
+     */
+    private final ChannelLut lut;
+
+    /**
+     * exact affine form for the vector kernels, null if the filter has none or the kernels are not available
+     */
+    private final ChannelAffine affine;
+
+    /**
+     * Filters a single channel value, the result only depends on that value
+     */
+    public interface Mapping {
+
+        /**
+         * @param shift position of the channel, one of RED, GREEN or BLUE
+         * @param value channel value, 0 to 255
+         * @return new channel value, 0 to 255
+         */
+        int map(int shift, int value);
+    }
+
+    /**
+     * @param lut tables of the filter, run as they are
+     */
+    protected ChannelFilter(ChannelLut lut) {
+        this.lut = lut;
+        this.affine = null;
+    }
+
+    /**
+     * Filter whose channels become clamp(add + (int) ((v - center) * mult)), see ChannelAffine
+     * map is tabulated, and the vector kernels only run the affine form when it gives the same tables
+     *
+     * @param map the filter of a single channel value
+     * @param mult multiplier of map
+     * @param center values of red, green and blue subtracted before multiplying
+     * @param add values of red, green and blue added after
+     */
+    protected ChannelFilter(Mapping map, double mult, int[] center, int[] add) {
+        this.lut = ChannelLut.compile(map);
+        this.affine = VectorKernels.INSTANCE == null ? null : ChannelAffine.of(mult, center, add, lut);
+    }
+
+    /**
+     * @return lookup tables equivalent to this filter
+     */
+    public ChannelLut lut() {
+        return lut;
+    }
+
+    // helper splitting a color into its red, green and blue values
+    static int[] channels(int color) {
+        return new int[]{COLOR & (color >> RED), COLOR & (color >> GREEN), COLOR & (color >> BLUE)};
+    }
+
+    // three table lookups per pixel, or the vector kernel for filters with an affine form
+    public void filter(Context context, int xlow, int xhi, int ylow, int yhi) {
+        int[] pixels = context.pixels;
+        int offset = context.offset, stride = context.stride;
+        VectorKernels simd = VectorKernels.INSTANCE;
+        for (int j = ylow; j < yhi; j++) {
+            int row = offset + j * stride;
+            if (affine != null) {
+                simd.affine(pixels, row + xlow, row + xhi, affine);
+                continue;
+            }
+            for (int i = xlow; i < xhi; i++) {
+                int idx = row + i;
+                pixels[idx] = lut.apply(pixels[idx]);
+            }
+        }
+    }
+
+    @Override
+    public int apply(int argb) {
+        return lut.apply(argb);
+    }
+}
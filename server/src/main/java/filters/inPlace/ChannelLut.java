@@ -0,0 +1,72 @@
+package filters.inPlace;
+
+import filters.Filter;
+
+/**
+ * Per channel lookup tables of a point filter whose output channels only depend on the same input channel
+ * red[v] is the new red value of a pixel with red value v, alpha is kept
+ */
+public final class ChannelLut {
+
+    private final int[] red, green, blue;
+
+    private ChannelLut(int[] red, int[] green, int[] blue) {
+        this.red = red;
+        this.green = green;
+        this.blue = blue;
+    }
+
+    /**
+     * Tabulates a channel filter for every channel value
+     *
+     * @param filter filter to compile
+     * @return lookup tables of filter
+     */
+    public static ChannelLut compile(ChannelFilter.Mapping filter) {
+        int[] red = new int[256];
+        int[] green = new int[256];
+        int[] blue = new int[256];
+        for (int v = 0; v < 256; v++) {
+            red[v] = filter.map(ChannelFilter.RED, v);
+            green[v] = filter.map(ChannelFilter.GREEN, v);
+            blue[v] = filter.map(ChannelFilter.BLUE, v);
+        }
+        return new ChannelLut(red, green, blue);
+    }
+
+    /**
+     * @param next tables to apply after this
+     * @return tables equivalent to applying this, then next
+     */
+    public ChannelLut then(ChannelLut next) {
+        int[] r = new int[256];
+        int[] g = new int[256];
+        int[] b = new int[256];
+        for (int v = 0; v < 256; v++) {
+            r[v] = next.red[red[v]];
+            g[v] = next.green[green[v]];
+            b[v] = next.blue[blue[v]];
+        }
+        return new ChannelLut(r, g, b);
+    }
+
+    /**
+     * @param shift position of the channel, one of ChannelFilter.RED, GREEN or BLUE
+     * @param v channel value
+     * @return new channel value
+     */
+    public int get(int shift, int v) {
+        return shift == ChannelFilter.RED ? red[v] : shift == ChannelFilter.GREEN ? green[v] : blue[v];
+    }
+
+    /**
+     * @param argb packed ARGB value of a pixel
+     * @return filtered packed ARGB value
+     */
+    public int apply(int argb) {
+        return (argb & Filter.ALPHA_MASK)
+                | (red[Filter.COLOR & (argb >> 16)] << 16)
+                | (green[Filter.COLOR & (argb >> 8)] << 8)
+                | blue[Filter.COLOR & argb];
+    }
+}
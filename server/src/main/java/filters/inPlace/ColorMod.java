@@ -2,26 +2,22 @@ package filters.inPlace;
 
 import filters.Filter;
 
-public class ColorMod extends InPlaceFilter {
+public class ColorMod extends ChannelFilter {
 
     /**
-     * color of the filter
+     * @param color color of the filter
      */
-    private final int color;
-
     public ColorMod(int color) {
-        this.color = color;
+        super((shift, value) -> Math.max(0, Math.min(0xFF, -128 + value + (Filter.COLOR & (color >> shift)))),
+                1, new int[3], offsets(color));
     }
 
-    public void filter(int xlow, int xhi, int ylow, int yhi) {
-        for (int i = xlow; i < xhi; i++) {
-            for (int j = ylow; j < yhi; j++) {
-                int argb = bi.getRGB(i, j);
-                int red = Math.max(0, Math.min(0xFF, -128 + (Filter.COLOR & (argb >> 16)) + (Filter.COLOR & (color >> 16))));
-                int green = Math.max(0, Math.min(0xFF, -128 + (Filter.COLOR & (argb >> 8)) + (Filter.COLOR & (color >> 8))));
-                int blue = Math.max(0, Math.min(0xFF, -128 + (Filter.COLOR & (argb)) + (Filter.COLOR & (color))));
-                bi.setRGB(i, j, ((argb & Filter.ALPHA_MASK) | (red << 16) | (green << 8) | blue));
-            }
+    // helper giving the value added to every channel, its value in color minus 128
+    private static int[] offsets(int color) {
+        int[] add = channels(color);
+        for (int c = 0; c < add.length; c++) {
+            add[c] -= 128;
         }
+        return add;
     }
 }
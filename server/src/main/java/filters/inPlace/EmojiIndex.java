@@ -0,0 +1,298 @@
+package filters.inPlace;
+
+import filters.Filter;
+
+/**
+ * Reference emojis packed for the nearest emoji search of Emojify
+ * The distance of a block to an emoji is the sum over the opaque pixels of the emoji of the channel
+ * differences, divided by its opaque pixel count. Candidates are rejected without a full comparison when
+ * a lower bound of their distance, from the color range of every 4x4 cell of the block, cannot beat the
+ * best emoji so far, and the comparisons that do run stop after the first row that puts them over it.
+ * Distances are compared exactly, as integer fractions.
+ */
+public final class EmojiIndex {
+
+    /**
+     * side of an emoji and of a block, and of the cells the lower bound works on
+     */
+    static final int SIDE = Emojify.BLOCK_LENGTH;
+    private static final int CELL = 4, CELLS = SIDE / CELL;
+
+    /**
+     * largest distance of a match, a block further than this from every emoji has no match
+     */
+    private static final int MAX_DISTANCE = 3 * Filter.COLOR;
+
+    /**
+     * number of emojis
+     */
+    final int size;
+
+    /**
+     * opaque pixel count of every emoji, the divisor of its distances
+     */
+    private final int[] counts;
+
+    /**
+     * opaque pixels of emoji k, row by row, in [start[k], start[k + 1])
+     * pos holds y * SIDE + x, and the channels are split so the comparison loop does not unpack them
+     * rowEnd[k * SIDE + y] is the end of the pixels of row y of emoji k
+     */
+    private final int[] start, rowEnd;
+    private final short[] pos;
+    private final short[] red, green, blue;
+
+    /**
+     * opaque pixel count and channel sums of every cell of emoji k, at (k * CELLS * CELLS + cell)
+     */
+    private final int[] cellCount;
+    private final int[] cellRed, cellGreen, cellBlue;
+
+    /**
+     * pixels replacing a block matched to emoji k, transparent pixels turned white, at k * SIDE * SIDE
+     */
+    private final int[] paint;
+
+    /**
+     * @param argb pixels of the emojis, emoji k at k * SIDE * SIDE, in the order ties are broken
+     * @param opaque opaque pixel count of every emoji
+     */
+    EmojiIndex(int[] argb, int[] opaque) {
+        size = opaque.length;
+        counts = opaque.clone();
+        start = new int[size + 1];
+        rowEnd = new int[size * SIDE];
+        cellCount = new int[size * CELLS * CELLS];
+        cellRed = new int[size * CELLS * CELLS];
+        cellGreen = new int[size * CELLS * CELLS];
+        cellBlue = new int[size * CELLS * CELLS];
+        paint = new int[size * SIDE * SIDE];
+
+        int total = 0;
+        for (int p = 0; p < paint.length; p++) {
+            if ((argb[p] & Filter.ALPHA_MASK) != 0) {
+                total++;
+            }
+            paint[p] = (argb[p] & Filter.ALPHA_MASK) == 0 ? 0xFFFFFFFF : argb[p];
+        }
+
+        pos = new short[total];
+        red = new short[total];
+        green = new short[total];
+        blue = new short[total];
+        int t = 0;
+        for (int k = 0; k < size; k++) {
+            start[k] = t;
+            for (int y = 0; y < SIDE; y++) {
+                for (int x = 0; x < SIDE; x++) {
+                    int color = argb[k * SIDE * SIDE + y * SIDE + x];
+                    if ((color & Filter.ALPHA_MASK) == 0) {
+                        continue;
+                    }
+                    int r = Filter.COLOR & (color >> 16), g = Filter.COLOR & (color >> 8), b = Filter.COLOR & color;
+                    pos[t] = (short) (y * SIDE + x);
+                    red[t] = (short) r;
+                    green[t] = (short) g;
+                    blue[t] = (short) b;
+                    t++;
+                    int cell = k * CELLS * CELLS + (y / CELL) * CELLS + x / CELL;
+                    cellCount[cell]++;
+                    cellRed[cell] += r;
+                    cellGreen[cell] += g;
+                    cellBlue[cell] += b;
+                }
+                rowEnd[k * SIDE + y] = t;
+            }
+        }
+        start[size] = t;
+    }
+
+    /**
+     * @param argb pixels of an emoji
+     * @return number of pixels that are not fully transparent
+     */
+    static int opaque(int[] argb) {
+        int count = 0;
+        for (int color : argb) {
+            if ((color & Filter.ALPHA_MASK) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Per thread buffers of a search
+     */
+    static final class Block {
+        final int[] red = new int[SIDE * SIDE], green = new int[SIDE * SIDE], blue = new int[SIDE * SIDE];
+
+        /**
+         * channel ranges of the cells, min then max
+         */
+        final int[] low = new int[3 * CELLS * CELLS], high = new int[3 * CELLS * CELLS];
+
+        /**
+         * lower bounds of the distance sums of every emoji
+         */
+        long[] bounds = new long[0];
+        int width, height;
+    }
+
+    /**
+     * Finds the emoji nearest to a block
+     *
+     * @param block pixels of the block, loaded by load
+     * @return index of the nearest emoji, the first one if every emoji is at the largest distance
+     */
+    int nearest(Block block) {
+        boolean whole = block.width == SIDE && block.height == SIDE;
+        if (whole) {
+            ranges(block);
+        }
+        // best distance so far is bestSum / bestCount
+        long bestSum = MAX_DISTANCE, bestCount = 1;
+        int best = -1;
+        // start from the emoji with the lowest bound, it is usually close to the nearest
+        int first = 0;
+        if (whole && size > 0) {
+            first = bounds(block);
+        }
+        for (int n = 0; n < size; n++) {
+            int k = (first + n) % size;
+            long count = counts[k];
+            // d < best when sum / count < bestSum / bestCount
+            long limit = bestSum * count;
+            if (whole && block.bounds[k] * bestCount >= limit) {
+                continue;
+            }
+            long sum = distance(block, k, whole, limit, bestCount);
+            if (sum >= 0 && sum * bestCount < limit) {
+                bestSum = sum;
+                bestCount = count;
+                best = k;
+            }
+        }
+        // no emoji got under the largest distance, they all tie
+        return Math.max(0, best);
+    }
+
+    /**
+     * Copies the pixels of emoji k over the block at (x0, y0) of the image, clipped to width x height
+     */
+    void paint(int k, int[] pixels, int offset, int stride, int x0, int y0, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(paint, k * SIDE * SIDE + y * SIDE, pixels, offset + (y0 + y) * stride + x0, width);
+        }
+    }
+
+    /**
+     * Loads the block at (x0, y0) of the image, clipped to width x height, into block
+     */
+    static void load(Block block, int[] pixels, int offset, int stride, int x0, int y0, int width, int height) {
+        block.width = width;
+        block.height = height;
+        for (int y = 0; y < height; y++) {
+            int row = offset + (y0 + y) * stride + x0;
+            for (int x = 0; x < width; x++) {
+                int argb = pixels[row + x];
+                block.red[y * SIDE + x] = Filter.COLOR & (argb >> 16);
+                block.green[y * SIDE + x] = Filter.COLOR & (argb >> 8);
+                block.blue[y * SIDE + x] = Filter.COLOR & argb;
+            }
+        }
+    }
+
+    // helper computing the bounds of every emoji, returns the emoji with the lowest bound relative to its count
+    private int bounds(Block block) {
+        if (block.bounds.length < size) {
+            block.bounds = new long[size];
+        }
+        int first = 0;
+        long firstBound = 0, firstCount = 0;
+        for (int k = 0; k < size; k++) {
+            long bound = bound(block, k);
+            block.bounds[k] = bound;
+            if (k == 0 || bound * firstCount < firstBound * counts[k]) {
+                first = k;
+                firstBound = bound;
+                firstCount = counts[k];
+            }
+        }
+        return first;
+    }
+
+    // helper computing the channel ranges of every cell of a whole block
+    private static void ranges(Block block) {
+        for (int c = 0; c < CELLS * CELLS; c++) {
+            int cx = (c % CELLS) * CELL, cy = (c / CELLS) * CELL;
+            int rlo = 255, rhi = 0, glo = 255, ghi = 0, blo = 255, bhi = 0;
+            for (int y = cy; y < cy + CELL; y++) {
+                for (int x = cx; x < cx + CELL; x++) {
+                    int p = y * SIDE + x;
+                    rlo = Math.min(rlo, block.red[p]);
+                    rhi = Math.max(rhi, block.red[p]);
+                    glo = Math.min(glo, block.green[p]);
+                    ghi = Math.max(ghi, block.green[p]);
+                    blo = Math.min(blo, block.blue[p]);
+                    bhi = Math.max(bhi, block.blue[p]);
+                }
+            }
+            block.low[3 * c] = rlo;
+            block.high[3 * c] = rhi;
+            block.low[3 * c + 1] = glo;
+            block.high[3 * c + 1] = ghi;
+            block.low[3 * c + 2] = blo;
+            block.high[3 * c + 2] = bhi;
+        }
+    }
+
+    // helper bounding the distance sum of emoji k from below
+    // in a cell of n opaque pixels, sum |e - x| >= |sum e - sum x| and sum x is between n * low and n * high
+    private long bound(Block block, int k) {
+        long bound = 0;
+        int base = k * CELLS * CELLS;
+        for (int c = 0; c < CELLS * CELLS; c++) {
+            int n = cellCount[base + c];
+            if (n == 0) {
+                continue;
+            }
+            bound += outside(cellRed[base + c], n * block.low[3 * c], n * block.high[3 * c])
+                    + outside(cellGreen[base + c], n * block.low[3 * c + 1], n * block.high[3 * c + 1])
+                    + outside(cellBlue[base + c], n * block.low[3 * c + 2], n * block.high[3 * c + 2]);
+        }
+        return bound;
+    }
+
+    private static int outside(int v, int low, int high) {
+        return v < low ? low - v : v > high ? v - high : 0;
+    }
+
+    // helper summing the channel differences of emoji k over the block, row by row
+    // stops with -1 once the sum over bestCount reaches limit, as it can only grow
+    private long distance(Block block, int k, boolean whole, long limit, long bestCount) {
+        long sum = 0;
+        int t = start[k];
+        int[] br = block.red, bg = block.green, bb = block.blue;
+        for (int y = 0; y < SIDE; y++) {
+            int end = rowEnd[k * SIDE + y];
+            if (whole) {
+                for (; t < end; t++) {
+                    int p = pos[t];
+                    sum += Math.abs(red[t] - br[p]) + Math.abs(green[t] - bg[p]) + Math.abs(blue[t] - bb[p]);
+                }
+            } else {
+                for (; t < end; t++) {
+                    int p = pos[t];
+                    if (p / SIDE < block.height && p % SIDE < block.width) {
+                        sum += Math.abs(red[t] - br[p]) + Math.abs(green[t] - bg[p]) + Math.abs(blue[t] - bb[p]);
+                    }
+                }
+            }
+            if (sum * bestCount >= limit) {
+                return -1;
+            }
+        }
+        return sum;
+    }
+}
@@ -4,8 +4,6 @@ import filters.Filter;
 import filters.Parallelize;
 
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
-import java.util.Map;
 
 public class Emojify extends Filter {
 
@@ -15,70 +13,56 @@ public class Emojify extends Filter {
     public static final int BLOCK_LENGTH = 16;
 
     /**
-     * map of reference emojis to number of opaque pixels in the image
+     * reference emojis, packed for the nearest emoji search
      */
-    private final Map<BufferedImage, Integer> emojis;
+    private final EmojiIndex index;
 
-    public Emojify(Map<BufferedImage, Integer> emojis){
-        this.emojis = emojis;
+    /**
+     * @param index reference emojis, e.g. GlyphAtlas.load().emojis()
+     * @throws IllegalArgumentException if the index has no emojis
+     */
+    public Emojify(EmojiIndex index){
+        if (index.size == 0) {
+            throw new IllegalArgumentException("no emojis to match blocks with");
+        }
+        this.index = index;
     }
 
     @Override
-    public void applyFilter(BufferedImage bi) {
-        this.bi = bi;
-        fjpool.invoke(new Parallelize(0, (bi.getWidth() + 15) / 16, 0, (bi.getHeight() + 15) / 16, this, 4));
+    public int tileAlign() {
+        return BLOCK_LENGTH;
     }
 
-    public void filter(int xlow, int xhi, int ylow, int yhi) {
-        for (int x = xlow; x < xhi; x++) {
-            for (int y = ylow; y < yhi; y++) {
-                Map<BufferedImage, Double> distance = new HashMap<>();
-                for (BufferedImage image : emojis.keySet()) {
-                    distance.put(image, 0.0);
-                }
+    @Override
+    public int cost() {
+        // the range is in blocks, most emojis of a block are rejected from their bounds in a few dozen operations
+        return BLOCK_LENGTH * BLOCK_LENGTH + 64 * index.size;
+    }
 
-                // get distances by comparing pixel values for every emoji, add all up
-                for (int i = x * BLOCK_LENGTH; i < (x + 1) * BLOCK_LENGTH && i < bi.getWidth(); i++) {
-                    for (int j = y * BLOCK_LENGTH; j < (y + 1) * BLOCK_LENGTH && j < bi.getHeight(); j++) {
-                        int argb = bi.getRGB(i, j);
-                        int red = COLOR & (argb >> 16);
-                        int green = COLOR & (argb >> 8);
-                        int blue = COLOR & argb;
+    @Override
+    public void applyFilter(BufferedImage bi) {
+        Context context = new Context(bi);
+        parallelize(new Parallelize(0, (bi.getWidth() + BLOCK_LENGTH - 1) / BLOCK_LENGTH, 0,
+                (bi.getHeight() + BLOCK_LENGTH - 1) / BLOCK_LENGTH, this, context));
+        context.commit();
+    }
 
-                        for (BufferedImage image : emojis.keySet()) {
-                            int color = image.getRGB(i % BLOCK_LENGTH, j % BLOCK_LENGTH);
-                            if ((color & ALPHA_MASK) != 0) {
-                                int cr = COLOR & (color >> 16);
-                                int cg = COLOR & (color >> 8);
-                                int cb = COLOR & color;
-                                double sumDist = (double) Math.abs(cr - red) + Math.abs(cg - green) + Math.abs(cb - blue);
-                                distance.put(image, distance.get(image) + sumDist / emojis.get(image));
-                            }
-                        }
-                    }
-                }
-                BufferedImage emoji = null;
-                double minDist = 0xFF * 3.0;
-                for (BufferedImage image : distance.keySet()) {
-                    if (distance.get(image) < minDist) {
-                        minDist = distance.get(image);
-                        emoji = image;
-                    }
-                }
+    public void filter(Context context, int xlow, int xhi, int ylow, int yhi) {
+        int[] pixels = context.pixels;
+        int offset = context.offset, stride = context.stride;
+        BufferedImage bi = context.bi;
+        EmojiIndex.Block block = new EmojiIndex.Block();
+        for (int y = ylow; y < yhi; y++) {
+            for (int x = xlow; x < xhi; x++) {
+                int x0 = x * BLOCK_LENGTH, y0 = y * BLOCK_LENGTH;
+                int w = Math.min(BLOCK_LENGTH, bi.getWidth() - x0);
+                int h = Math.min(BLOCK_LENGTH, bi.getHeight() - y0);
+                EmojiIndex.load(block, pixels, offset, stride, x0, y0, w, h);
+                int emoji = index.nearest(block);
 
-                assert emoji != null;
+                assert emoji >= 0;
                 // convert 16x16 block into emoji
-                for (int i = x * BLOCK_LENGTH; i < (x + 1) * BLOCK_LENGTH && i < bi.getWidth(); i++) {
-                    for (int j = y * BLOCK_LENGTH; j < (y + 1) * BLOCK_LENGTH && j < bi.getHeight(); j++) {
-                        int newColor = emoji.getRGB(i % BLOCK_LENGTH, j % BLOCK_LENGTH);
-
-                        // change background to white if emoji background is transparent
-                        if ((newColor & ALPHA_MASK) == 0) {
-                            newColor = 0xFFFFFFFF;
-                        }
-                        bi.setRGB(i, j, newColor);
-                    }
-                }
+                index.paint(emoji, pixels, offset, stride, x0, y0, w, h);
             }
         }
     }
@@ -0,0 +1,36 @@
+package filters.inPlace;
+
+import java.util.List;
+
+public class FusedFilter extends InPlaceFilter {
+
+    /**
+     * filters applied one after the other to every pixel
+     */
+    private final InPlaceFilter[] steps;
+
+    public FusedFilter(List<InPlaceFilter> steps) {
+        this.steps = steps.toArray(new InPlaceFilter[0]);
+    }
+
+    // one traversal over the pixels for all the steps
+    public void filter(Context context, int xlow, int xhi, int ylow, int yhi) {
+        int[] pixels = context.pixels;
+        int offset = context.offset, stride = context.stride;
+        for (int j = ylow; j < yhi; j++) {
+            int row = offset + j * stride;
+            for (int i = xlow; i < xhi; i++) {
+                int idx = row + i;
+                pixels[idx] = apply(pixels[idx]);
+            }
+        }
+    }
+
+    @Override
+    public int apply(int argb) {
+        for (InPlaceFilter step : steps) {
+            argb = step.apply(argb);
+        }
+        return argb;
+    }
+}
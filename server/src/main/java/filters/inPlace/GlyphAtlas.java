@@ -0,0 +1,228 @@
+package filters.inPlace;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reference emojis and ascii glyphs of Emojify and Asciify, packed into one binary resource
+ * The packGlyphs build step runs utils.PackGlyphs over src/main/resources/emojis and ascii, and the jar
+ * carries the result as RESOURCE, read in bulk at startup. Emojis come with their opaque pixel counts
+ * and glyphs with their masks, so nothing is decoded or counted when the server starts.
+ * <p>
+ * Layout, big endian: MAGIC, VERSION, then for emojis SIDE, count, opaque pixel counts, ARGB pixels,
+ * then for glyphs SIDE, count, white masks, black masks, ARGB pixels. Both are sorted by their pixels.
+ */
+public final class GlyphAtlas {
+
+    /**
+     * classpath location of the packed atlas
+     */
+    public static final String RESOURCE = "/glyphs.atlas";
+
+    /**
+     * "GLYA" and the version of the layout
+     */
+    private static final int MAGIC = 0x474C5941, VERSION = 1;
+
+    /**
+     * directories packed when the resource is missing, e.g. classes compiled without the build step
+     */
+    private static final String SOURCES = "src/main/resources/";
+
+    /**
+     * atlas loaded by load, shared by every filter
+     */
+    private static GlyphAtlas loaded;
+
+    /**
+     * emoji k at k * EmojiIndex.SIDE^2, with its opaque pixel count in opaque[k]
+     */
+    private final int[] emojiArgb, opaque;
+
+    /**
+     * glyph k at k * AsciiIndex.SIDE^2, with its masks in white[k] and black[k]
+     */
+    private final int[] asciiArgb;
+    private final long[] white, black;
+
+    /**
+     * searches built from the arrays above
+     */
+    private final EmojiIndex emojis;
+    private final AsciiIndex asciis;
+
+    private GlyphAtlas(int[] emojiArgb, int[] opaque, int[] asciiArgb, long[] white, long[] black) {
+        this.emojiArgb = emojiArgb;
+        this.opaque = opaque;
+        this.asciiArgb = asciiArgb;
+        this.white = white;
+        this.black = black;
+        this.emojis = new EmojiIndex(emojiArgb, opaque);
+        this.asciis = new AsciiIndex(asciiArgb, white, black);
+    }
+
+    /**
+     * Loads the atlas from the classpath on the first call, or packs the source directories
+     * when it is not there
+     *
+     * @return the shared atlas, empty if neither could be read
+     */
+    public static synchronized GlyphAtlas load() {
+        if (loaded == null) {
+            try (InputStream in = GlyphAtlas.class.getResourceAsStream(RESOURCE)) {
+                loaded = in != null ? read(in) : pack(new File(SOURCES + "emojis"), new File(SOURCES + "ascii"));
+            } catch (IOException e) {
+                System.out.println("Input error: " + e);
+                loaded = new GlyphAtlas(new int[0], new int[0], new int[0], new long[0], new long[0]);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * @return nearest emoji search over the emojis
+     */
+    public EmojiIndex emojis() {
+        return emojis;
+    }
+
+    /**
+     * @return nearest glyph search over the ascii glyphs
+     */
+    public AsciiIndex asciis() {
+        return asciis;
+    }
+
+    /**
+     * Decodes the PNGs of two directories into an atlas
+     *
+     * @param emojiDir emojis, EmojiIndex.SIDE square
+     * @param asciiDir ascii glyphs, AsciiIndex.SIDE square
+     * @return atlas of the images
+     * @throws IOException if an image cannot be read or has the wrong size
+     */
+    public static GlyphAtlas pack(File emojiDir, File asciiDir) throws IOException {
+        List<int[]> emojiList = decode(emojiDir, EmojiIndex.SIDE);
+        List<int[]> asciiList = decode(asciiDir, AsciiIndex.SIDE);
+        int[] emojiArgb = flatten(emojiList, EmojiIndex.SIDE);
+        int[] opaque = new int[emojiList.size()];
+        for (int k = 0; k < opaque.length; k++) {
+            opaque[k] = EmojiIndex.opaque(emojiList.get(k));
+        }
+        int[] asciiArgb = flatten(asciiList, AsciiIndex.SIDE);
+        long[] white = new long[asciiList.size()], black = new long[asciiList.size()];
+        AsciiIndex.masks(asciiArgb, white, black);
+        return new GlyphAtlas(emojiArgb, opaque, asciiArgb, white, black);
+    }
+
+    /**
+     * Writes the atlas in the layout read by load
+     *
+     * @param out stream to write to, left open
+     * @throws IOException if writing fails
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(EmojiIndex.SIDE);
+        data.writeInt(opaque.length);
+        for (int v : opaque) {
+            data.writeInt(v);
+        }
+        for (int v : emojiArgb) {
+            data.writeInt(v);
+        }
+        data.writeInt(AsciiIndex.SIDE);
+        data.writeInt(white.length);
+        for (long v : white) {
+            data.writeLong(v);
+        }
+        for (long v : black) {
+            data.writeLong(v);
+        }
+        for (int v : asciiArgb) {
+            data.writeInt(v);
+        }
+        data.flush();
+    }
+
+    // helper reading an atlas written by write
+    private static GlyphAtlas read(InputStream in) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(in.readAllBytes());
+        try {
+            if (data.getInt() != MAGIC || data.getInt() != VERSION) {
+                throw new IOException("not a version " + VERSION + " glyph atlas");
+            }
+            side(data, EmojiIndex.SIDE);
+            int emojiCount = data.getInt();
+            int[] opaque = ints(data, emojiCount);
+            int[] emojiArgb = ints(data, emojiCount * EmojiIndex.SIDE * EmojiIndex.SIDE);
+            side(data, AsciiIndex.SIDE);
+            int asciiCount = data.getInt();
+            long[] white = longs(data, asciiCount);
+            long[] black = longs(data, asciiCount);
+            int[] asciiArgb = ints(data, asciiCount * AsciiIndex.SIDE * AsciiIndex.SIDE);
+            return new GlyphAtlas(emojiArgb, opaque, asciiArgb, white, black);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("truncated glyph atlas", e);
+        }
+    }
+
+    private static void side(ByteBuffer data, int side) throws IOException {
+        int found = data.getInt();
+        if (found != side) {
+            throw new IOException("glyph atlas has " + found + " pixel glyphs, expected " + side);
+        }
+    }
+
+    private static int[] ints(ByteBuffer data, int n) {
+        int[] values = new int[n];
+        data.asIntBuffer().get(values);
+        data.position(data.position() + 4 * n);
+        return values;
+    }
+
+    private static long[] longs(ByteBuffer data, int n) {
+        long[] values = new long[n];
+        data.asLongBuffer().get(values);
+        data.position(data.position() + 8 * n);
+        return values;
+    }
+
+    // helper decoding every image of a directory, in the order of their pixels so the atlas is reproducible
+    private static List<int[]> decode(File dir, int side) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("cannot list " + dir);
+        }
+        List<int[]> images = new ArrayList<>();
+        for (File file : files) {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null || image.getWidth() != side || image.getHeight() != side) {
+                throw new IOException(file + " is not a " + side + "x" + side + " image");
+            }
+            images.add(image.getRGB(0, 0, side, side, null, 0, side));
+        }
+        images.sort(Arrays::compare);
+        return images;
+    }
+
+    private static int[] flatten(List<int[]> images, int side) {
+        int[] flat = new int[images.size() * side * side];
+        for (int k = 0; k < images.size(); k++) {
+            System.arraycopy(images.get(k), 0, flat, k * side * side, side * side);
+        }
+        return flat;
+    }
+}
@@ -6,16 +6,29 @@ public class Grayscale extends InPlaceFilter {
 
     public Grayscale(){}
 
-    public void filter(int xlow, int xhi, int ylow, int yhi) {
-        for (int i = xlow; i < xhi; i++) {
-            for (int j = ylow; j < yhi; j++) {
-                int argb = bi.getRGB(i, j);
-                int red = Filter.COLOR & (argb >> 16);
-                int green = Filter.COLOR & (argb >> 8);
-                int blue = Filter.COLOR & argb;
-                int gray = (red + green + blue) / 3;
-                bi.setRGB(i, j, ((argb & Filter.ALPHA_MASK) | (gray << 16) | (gray << 8) | gray));
+    public void filter(Context context, int xlow, int xhi, int ylow, int yhi) {
+        int[] pixels = context.pixels;
+        int offset = context.offset, stride = context.stride;
+        VectorKernels simd = VectorKernels.INSTANCE;
+        for (int j = ylow; j < yhi; j++) {
+            int row = offset + j * stride;
+            if (simd != null) {
+                simd.grayscale(pixels, row + xlow, row + xhi);
+                continue;
+            }
+            for (int i = xlow; i < xhi; i++) {
+                int idx = row + i;
+                pixels[idx] = apply(pixels[idx]);
             }
         }
     }
+
+    @Override
+    public int apply(int argb) {
+        int red = Filter.COLOR & (argb >> 16);
+        int green = Filter.COLOR & (argb >> 8);
+        int blue = Filter.COLOR & argb;
+        int gray = (red + green + blue) / 3;
+        return ((argb & Filter.ALPHA_MASK) | (gray << 16) | (gray << 8) | gray);
+    }
 }
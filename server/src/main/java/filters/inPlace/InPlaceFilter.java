@@ -9,8 +9,17 @@ public abstract class InPlaceFilter extends Filter {
 
     @Override
     public void applyFilter(BufferedImage bi) {
-        this.bi = bi;
-        fjpool.invoke(new Parallelize(0, bi.getWidth(), 0, bi.getHeight(), this));
+        Context context = new Context(bi);
+        parallelize(new Parallelize(0, bi.getWidth(), 0, bi.getHeight(), this, context));
+        context.commit();
     }
 
+    /**
+     * Filters a single pixel, the result only depends on that pixel
+     *
+     * @param argb packed ARGB value of the pixel
+     * @return filtered packed ARGB value
+     */
+    public abstract int apply(int argb);
+
 }
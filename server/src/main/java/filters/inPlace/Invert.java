@@ -2,16 +2,10 @@ package filters.inPlace;
 
 import filters.Filter;
 
-public class Invert extends InPlaceFilter{
+public class Invert extends ChannelFilter {
 
-    public Invert(){}
-
-    public void filter(int xlow, int xhi, int ylow, int yhi) {
-        for (int i = xlow; i < xhi; i++) {
-            for (int j = ylow; j < yhi; j++) {
-                int argb = bi.getRGB(i, j);
-                bi.setRGB(i, j, (argb & Filter.ALPHA_MASK) + (Filter.RGB_MASK & ~argb));
-            }
-        }
+    public Invert(){
+        super((shift, value) -> Filter.COLOR - value,
+                -1, new int[]{Filter.COLOR, Filter.COLOR, Filter.COLOR}, new int[3]);
     }
 }
@@ -0,0 +1,11 @@
+package filters.inPlace;
+
+public class LutFilter extends ChannelFilter {
+
+    /**
+     * @param tables tables to apply
+     */
+    public LutFilter(ChannelLut tables) {
+        super(tables);
+    }
+}
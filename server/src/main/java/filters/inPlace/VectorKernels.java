@@ -0,0 +1,48 @@
+package filters.inPlace;
+
+/**
+ * SIMD loops of point filters, over the pixels in [from, to) of an int[] of packed ARGB values
+ * The implementation uses jdk.incubator.vector, it lives in the vector source set and is loaded
+ * reflectively, so the server still runs on JVMs without the module. Results are bit-identical
+ * to the scalar loops of the filters.
+ */
+public interface VectorKernels {
+
+    /**
+     * kernels of this JVM, null when the Vector API is missing, has no useful vector width,
+     * or photofilter.vector is false
+     */
+    VectorKernels INSTANCE = load();
+
+    /**
+     * Grayscale: every channel set to (r + g + b) / 3
+     */
+    void grayscale(int[] pixels, int from, int to);
+
+    /**
+     * BlackWhite: white when (r + g + b) / 3 >= threshold, black otherwise
+     */
+    void blackWhite(int[] pixels, int from, int to, int threshold);
+
+    /**
+     * Channel filters with an integer affine form, see ChannelAffine
+     */
+    void affine(int[] pixels, int from, int to, ChannelAffine affine);
+
+    private static VectorKernels load() {
+        if (!Boolean.parseBoolean(System.getProperty("photofilter.vector", "true"))) {
+            return null;
+        }
+        try {
+            Class<?> kernels = Class.forName("filters.inPlace.vector.IntVectorKernels");
+            if (!(Boolean) kernels.getMethod("supported").invoke(null)) {
+                // no SIMD wide enough on this cpu
+                return null;
+            }
+            return (VectorKernels) kernels.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // not compiled in, or run without --add-modules jdk.incubator.vector
+            return null;
+        }
+    }
+}
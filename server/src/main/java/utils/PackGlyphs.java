@@ -0,0 +1,35 @@
+package utils;
+
+import filters.inPlace.GlyphAtlas;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class PackGlyphs {
+
+    /*
+    Build step packing the emoji and ascii PNGs into the atlas the server loads, see GlyphAtlas
+    Run by the packGlyphs gradle task, arguments are the emoji directory, the ascii directory
+    and the atlas file to write
+     */
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.out.println("usage: PackGlyphs <emoji dir> <ascii dir> <atlas file>");
+            System.exit(1);
+        }
+        GlyphAtlas atlas = GlyphAtlas.pack(new File(args[0]), new File(args[1]));
+        File out = new File(args[2]);
+        File parent = out.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("cannot create " + parent);
+        }
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(out))) {
+            atlas.write(stream);
+        }
+        System.out.println("packed glyphs into " + out);
+    }
+}
@@ -0,0 +1,112 @@
+package filters.inPlace.vector;
+
+import filters.Filter;
+import filters.inPlace.ChannelAffine;
+import filters.inPlace.VectorKernels;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * VectorKernels on IntVector lanes of the preferred width, one packed ARGB pixel per lane
+ * Channels are unpacked with shifts and masks, and the leftover pixels of a row go through the
+ * same arithmetic one at a time. Loaded by VectorKernels, needs --add-modules jdk.incubator.vector.
+ */
+public final class IntVectorKernels implements VectorKernels {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * (s * THIRD) >>> THIRD_SHIFT is s / 3 for every sum s of three channels, 0 to 765
+     */
+    private static final int THIRD = 43691, THIRD_SHIFT = 17;
+
+    /**
+     * Queried by VectorKernels before it creates the kernels
+     *
+     * @return true when the preferred vectors are wide enough to beat the scalar loops, 4 lanes or more
+     */
+    public static boolean supported() {
+        return SPECIES.length() >= 4;
+    }
+
+    @Override
+    public void grayscale(int[] pixels, int from, int to) {
+        int i = from;
+        for (int end = from + SPECIES.loopBound(to - from); i < end; i += SPECIES.length()) {
+            IntVector argb = IntVector.fromArray(SPECIES, pixels, i);
+            IntVector gray = sum(argb).mul(THIRD).lanewise(VectorOperators.LSHR, THIRD_SHIFT);
+            argb.and(Filter.ALPHA_MASK)
+                    .or(gray.lanewise(VectorOperators.LSHL, 16))
+                    .or(gray.lanewise(VectorOperators.LSHL, 8))
+                    .or(gray)
+                    .intoArray(pixels, i);
+        }
+        for (; i < to; i++) {
+            int argb = pixels[i];
+            int gray = sum(argb) * THIRD >>> THIRD_SHIFT;
+            pixels[i] = (argb & Filter.ALPHA_MASK) | (gray << 16) | (gray << 8) | gray;
+        }
+    }
+
+    @Override
+    public void blackWhite(int[] pixels, int from, int to, int threshold) {
+        // s / 3 >= threshold exactly when s >= 3 * threshold
+        int bound = 3 * threshold;
+        IntVector white = IntVector.broadcast(SPECIES, Filter.RGB_MASK);
+        int i = from;
+        for (int end = from + SPECIES.loopBound(to - from); i < end; i += SPECIES.length()) {
+            IntVector argb = IntVector.fromArray(SPECIES, pixels, i);
+            VectorMask<Integer> light = sum(argb).compare(VectorOperators.GE, bound);
+            argb.and(Filter.ALPHA_MASK)
+                    .lanewise(VectorOperators.OR, white, light)
+                    .intoArray(pixels, i);
+        }
+        for (; i < to; i++) {
+            int argb = pixels[i];
+            pixels[i] = (argb & Filter.ALPHA_MASK) | (sum(argb) >= bound ? Filter.RGB_MASK : 0);
+        }
+    }
+
+    @Override
+    public void affine(int[] pixels, int from, int to, ChannelAffine affine) {
+        int i = from;
+        for (int end = from + SPECIES.loopBound(to - from); i < end; i += SPECIES.length()) {
+            IntVector argb = IntVector.fromArray(SPECIES, pixels, i);
+            argb.and(Filter.ALPHA_MASK)
+                    .or(channel(argb, 16, affine, 0).lanewise(VectorOperators.LSHL, 16))
+                    .or(channel(argb, 8, affine, 1).lanewise(VectorOperators.LSHL, 8))
+                    .or(channel(argb, 0, affine, 2))
+                    .intoArray(pixels, i);
+        }
+        for (; i < to; i++) {
+            int argb = pixels[i];
+            pixels[i] = (argb & Filter.ALPHA_MASK)
+                    | affine.apply(0, Filter.COLOR & (argb >> 16)) << 16
+                    | affine.apply(1, Filter.COLOR & (argb >> 8)) << 8
+                    | affine.apply(2, Filter.COLOR & argb);
+        }
+    }
+
+    // helper applying the affine form to one channel of every lane, as ChannelAffine.apply does
+    private static IntVector channel(IntVector argb, int shift, ChannelAffine affine, int c) {
+        IntVector product = argb.lanewise(VectorOperators.LSHR, shift).and(Filter.COLOR)
+                .sub(affine.center[c])
+                .mul(affine.mul);
+        // shift the magnitude, so the division rounds toward zero like a cast
+        IntVector quotient = product.abs().lanewise(VectorOperators.ASHR, affine.shift);
+        quotient = quotient.blend(quotient.neg(), product.compare(VectorOperators.LT, 0));
+        return quotient.add(affine.add[c]).max(0).min(Filter.COLOR);
+    }
+
+    private static IntVector sum(IntVector argb) {
+        return argb.lanewise(VectorOperators.LSHR, 16).and(Filter.COLOR)
+                .add(argb.lanewise(VectorOperators.LSHR, 8).and(Filter.COLOR))
+                .add(argb.and(Filter.COLOR));
+    }
+
+    private static int sum(int argb) {
+        return (Filter.COLOR & (argb >> 16)) + (Filter.COLOR & (argb >> 8)) + (Filter.COLOR & argb);
+    }
+}
@@ -0,0 +1,101 @@
+package filters.inPlace.vector;
+
+import filters.inPlace.BlackWhite;
+import filters.inPlace.Brightness;
+import filters.inPlace.ColorMod;
+import filters.inPlace.Grayscale;
+import filters.inPlace.InPlaceFilter;
+import filters.inPlace.Invert;
+import filters.inPlace.Saturate;
+import filters.inPlace.VectorKernels;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Build check of the vector kernels, run by gradle check: every point filter they serve runs on the
+ * same images through applyFilter, which takes the vector path, and through the scalar apply of each
+ * pixel, and the pixels must be equal. Exits with 1 on the first mismatch.
+ */
+public final class VectorCheck {
+
+    /**
+     * widths around the vector lengths, so both the vector loops and their scalar tails run
+     */
+    private static final int[] WIDTHS = {1, 3, 4, 7, 8, 15, 16, 17, 33, 257};
+
+    private VectorCheck() {}
+
+    public static void main(String[] args) {
+        if (VectorKernels.INSTANCE == null) {
+            if (IntVectorKernels.supported()) {
+                fail("vector kernels did not load");
+            }
+            System.out.println("vector check skipped, no SIMD wide enough on this cpu");
+            return;
+        }
+        Random random = new Random(7);
+        List<InPlaceFilter> filters = new ArrayList<>();
+        filters.add(new Grayscale());
+        filters.add(new Invert());
+        for (int intensity = -300; intensity <= 300; intensity += 7) {
+            filters.add(new BlackWhite(intensity));
+            filters.add(new Brightness(intensity));
+            filters.add(new Saturate(random.nextInt(), intensity));
+            filters.add(new ColorMod(random.nextInt()));
+        }
+        int checked = 0;
+        for (InPlaceFilter f : filters) {
+            for (int width : WIDTHS) {
+                BufferedImage bi = new BufferedImage(width, 5, BufferedImage.TYPE_INT_ARGB);
+                int[] pixels = ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = random.nextInt();
+                }
+                if (width == 257) {
+                    // every channel value once
+                    for (int v = 0; v < 256; v++) {
+                        pixels[v] = 0x80000000 | v * 0x010101;
+                    }
+                }
+                compare(f, bi, f.getClass().getSimpleName() + " width " + width);
+                checked++;
+            }
+        }
+        // every sum of three channels for the grayscale and black and white kernels
+        BufferedImage sums = new BufferedImage(256 * 256, 1, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) sums.getRaster().getDataBuffer()).getData();
+        for (int green : new int[]{0, 128, 255}) {
+            for (InPlaceFilter f : List.of(new Grayscale(), new BlackWhite(0), new BlackWhite(50))) {
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = 0x7F000000 | (i >> 8) << 16 | green << 8 | (i & 0xFF);
+                }
+                compare(f, sums, f.getClass().getSimpleName() + " sums, green " + green);
+                checked++;
+            }
+        }
+        System.out.println("vector check passed, " + checked + " images with " + VectorKernels.INSTANCE);
+    }
+
+    // helper filtering bi with both paths
+    private static void compare(InPlaceFilter f, BufferedImage bi, String name) {
+        int[] pixels = ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+        int[] scalar = pixels.clone();
+        for (int i = 0; i < scalar.length; i++) {
+            scalar[i] = f.apply(scalar[i]);
+        }
+        f.applyFilter(bi);
+        if (!Arrays.equals(scalar, pixels)) {
+            fail("vector and scalar pixels differ for " + name);
+        }
+    }
+
+    private static void fail(String message) {
+        System.err.println(message);
+        System.exit(1);
+    }
+}